@@ -0,0 +1,299 @@
+// Eli Murray
+// 1626960
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The BlockPrefetcher class reads the blocks of a file ahead of the worker
+ * that is sending them.
+ * While the worker waits for the ack of one block the next few blocks are
+ * read on a small I/O pool shared by every transfer.
+ * How far ahead it reads follows how fast acks come back compared to how long
+ * reads take, so a slow disk gets a deeper read ahead than a fast one.
+ * The amount of blocks held is capped per transfer and across the server.
+ * A block still queued behind reads of other transfers when it is needed is
+ * read by the worker itself instead of waiting its turn.
+ * A file already mapped into memory is read straight from there with no
+ * read ahead.
+ *
+ * @author Eli Murray
+ * @version 1.0
+ * @see TftpWorker
+ * @see HotFileIndex
+ * @see FileChannel
+ */
+public class BlockPrefetcher {
+
+   // threads in the shared I/O pool
+   private static final int IO_THREADS = 4;
+
+   // most blocks a single transfer can read ahead
+   private static final int MAX_DEPTH = 32;
+
+   // most blocks read ahead across all transfers
+   private static final int SERVER_BUDGET = 2048;
+
+   // pool that does the reads for every transfer
+   private static final ExecutorService ioPool = Executors.newFixedThreadPool(IO_THREADS, r -> {
+      Thread t = new Thread(r, "tftp-io");
+      t.setDaemon(true);
+      return t;
+   });
+
+   // one permit per block read ahead on the server
+   private static final Semaphore serverBudget = new Semaphore(SERVER_BUDGET);
+
+   // the file being read, null if it is in memory
+   private final FileChannel channel;
+
+   // the file in memory, null if it is read from disk
+   private final ByteBuffer mapped;
+
+   // size of the file
+   private final long size;
+
+   // size of each block
+   private final int blockSize;
+
+   /**
+    * A block read ahead on the pool. Whichever of the pool and the worker
+    * sets started first does the read.
+    */
+   private static class ReadAhead {
+      final AtomicBoolean started = new AtomicBoolean();
+      Future<byte[]> future;
+   }
+
+   // reads in progress or done but not taken yet, by block index
+   private final Map<Integer, ReadAhead> pending = new HashMap<Integer, ReadAhead>();
+
+   // smoothed time between acks per block in nanos, 0 until two acks seen
+   private long ackInterval = 0;
+
+   // time the last ack came in
+   private long lastAck = 0;
+
+   // smoothed time a read takes in nanos
+   private volatile long readTime = 0;
+
+   /**
+    * Creates a prefetcher over an open file.
+    *
+    * @param channel   the file to read blocks from
+    * @param blockSize the size of each block
+    * @throws IOException if the size of the file can not be read
+    */
+   public BlockPrefetcher(FileChannel channel, int blockSize) throws IOException {
+      this.channel = channel;
+      this.mapped = null;
+      this.size = channel.size();
+      this.blockSize = blockSize;
+   }
+
+   /**
+    * Creates a prefetcher over a file already in memory.
+    *
+    * @param mapped    the whole file
+    * @param blockSize the size of each block
+    */
+   public BlockPrefetcher(ByteBuffer mapped, int blockSize) {
+      this.channel = null;
+      this.mapped = mapped;
+      this.size = mapped.limit();
+      this.blockSize = blockSize;
+   }
+
+   /**
+    * Returns the size of the file
+    *
+    * @return the size of the file in bytes
+    */
+   public long getSize() {
+      return size;
+   }
+
+   /**
+    * Returns the amount of blocks in the file, a last block of less than
+    * blockSize is counted but an empty last block is not
+    *
+    * @return the amount of blocks in the file
+    */
+   public int getBlockCount() {
+      return (int) ((size + blockSize - 1) / blockSize);
+   }
+
+   /**
+    * Returns a block of the file and starts reading the blocks after it.
+    * If the block was already read ahead it is taken from memory otherwise it
+    * is read now.
+    *
+    * @param index the block to get starting from 0
+    * @return the data of the block
+    * @throws IOException if the block can not be read
+    */
+   public byte[] get(int index) throws IOException {
+      // nothing to wait for in memory
+      if (mapped != null) {
+         return read(index);
+      }
+
+      byte[] block = null;
+
+      // take the block if it was read ahead
+      ReadAhead ahead = pending.remove(index);
+      if (ahead != null) {
+         serverBudget.release();
+         if (ahead.started.compareAndSet(false, true)) {
+            // still queued behind other reads, read it below instead of waiting
+            ahead.future.cancel(false);
+         } else {
+            try {
+               block = ahead.future.get();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+               // read it again below
+            }
+         }
+      }
+      if (block == null) {
+         block = timedRead(index);
+      }
+
+      // drop anything behind this block, it will not be asked for
+      Iterator<Map.Entry<Integer, ReadAhead>> it = pending.entrySet().iterator();
+      while (it.hasNext()) {
+         Map.Entry<Integer, ReadAhead> e = it.next();
+         if (e.getKey() < index) {
+            e.getValue().future.cancel(false);
+            serverBudget.release();
+            it.remove();
+         }
+      }
+
+      // read ahead of this block
+      int last = Math.min(getBlockCount() - 1, index + depth());
+      for (int i = index + 1; i <= last; i++) {
+         if (pending.containsKey(i)) {
+            continue;
+         }
+         // out of budget, the block will be read when it is needed
+         if (!serverBudget.tryAcquire()) {
+            break;
+         }
+         final int next = i;
+         ReadAhead read = new ReadAhead();
+         read.future = ioPool.submit(() -> read.started.compareAndSet(false, true) ? timedRead(next) : null);
+         pending.put(i, read);
+      }
+
+      return block;
+   }
+
+   /**
+    * Tells the prefetcher an ack came in so it can track the ack rate. An
+    * ack can cover a window of blocks so the time is split between them.
+    *
+    * @param blocks the amount of blocks the ack covers
+    */
+   public void acked(int blocks) {
+      long now = System.nanoTime();
+      if (lastAck != 0 && blocks > 0) {
+         long sample = (now - lastAck) / blocks;
+         ackInterval = ackInterval == 0 ? sample : ackInterval + (sample - ackInterval) / 8;
+      }
+      lastAck = now;
+   }
+
+   /**
+    * Stops all reads ahead and gives back their budget. Also closes the file.
+    */
+   public void close() {
+      for (ReadAhead read : pending.values()) {
+         read.future.cancel(false);
+         serverBudget.release();
+      }
+      pending.clear();
+      if (channel == null) {
+         return;
+      }
+      try {
+         channel.close();
+      } catch (IOException e) {
+         System.out.println("Error closing file");
+      }
+   }
+
+   /**
+    * Works out how many blocks to read ahead. This is how many acks come in
+    * during one read plus one spare, so the next block is ready before it is
+    * needed.
+    *
+    * @return the amount of blocks to read ahead
+    */
+   private int depth() {
+      if (ackInterval == 0) {
+         return 1;
+      }
+      long d = (readTime + ackInterval - 1) / ackInterval + 1;
+      return (int) Math.max(1, Math.min(MAX_DEPTH, d));
+   }
+
+   /**
+    * Reads a block and updates the read time. The read time goes up fast on a
+    * slow read and comes down slowly, so one cold read keeps the read ahead
+    * deep for a while.
+    *
+    * @param index the block to read starting from 0
+    * @return the data of the block
+    * @throws IOException if the block can not be read
+    */
+   private byte[] timedRead(int index) throws IOException {
+      long start = System.nanoTime();
+      byte[] block = read(index);
+      long sample = System.nanoTime() - start;
+      long t = readTime;
+      readTime = sample > t ? t + (sample - t) / 2 : t + (sample - t) / 8;
+      return block;
+   }
+
+   /**
+    * Reads a block from memory, or from the file with a positional read so
+    * reads from different threads do not get in each others way.
+    *
+    * @param index the block to read starting from 0
+    * @return the data of the block
+    * @throws IOException if the block can not be read
+    */
+   private byte[] read(int index) throws IOException {
+      long position = (long) index * blockSize;
+      int length = (int) Math.max(0, Math.min(blockSize, size - position));
+      if (mapped != null) {
+         // duplicate so transfers of the same file do not share a position
+         byte[] block = new byte[length];
+         ByteBuffer source = mapped.duplicate();
+         source.position((int) position);
+         source.get(block);
+         return block;
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      while (buffer.hasRemaining()) {
+         if (channel.read(buffer, position + buffer.position()) < 0) {
+            break;
+         }
+      }
+      return Arrays.copyOf(buffer.array(), buffer.position());
+   }
+}
@@ -0,0 +1,61 @@
+// Eli Murray
+// 1626960
+
+/**
+ * A run of blocks of a file that is fetched from one server.
+ * Block numbers start at 1 and both ends are included.
+ * The end can be moved down while the range is being fetched so an idle
+ * server can take over the rest of it.
+ *
+ * @author Eli Murray
+ * @version 1.0
+ * @see StripedDownload
+ * @see TftpRangeFetcher
+ */
+public class BlockRange {
+
+   /**
+    * the first block of the range
+    */
+   public final int first;
+
+   /**
+    * the next block that has not been received yet
+    */
+   public volatile int next;
+
+   /**
+    * the last block of the range
+    */
+   public volatile int last;
+
+   /**
+    * Creates a range of blocks
+    *
+    * @param first the first block of the range
+    * @param last  the last block of the range
+    */
+   public BlockRange(int first, int last) {
+      this.first = first;
+      this.next = first;
+      this.last = last;
+   }
+
+   /**
+    * Returns the amount of blocks not received yet
+    *
+    * @return the amount of blocks left
+    */
+   public int remaining() {
+      return Math.max(0, last - next + 1);
+   }
+
+   /**
+    * Returns the range as first-last
+    *
+    * @return the range as a string
+    */
+   public String toString() {
+      return first + "-" + last;
+   }
+}
@@ -0,0 +1,265 @@
+// Eli Murray
+// 1626960
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The HotFileIndex class counts how often each file is requested and keeps
+ * the counts of the most requested files in an index file, saved now and
+ * then and when the server stops.
+ *
+ * When the server starts the files in the index are mapped into memory on a
+ * background thread, most requested first, until the warm up budget is used.
+ * Requests for a mapped file are served from memory so the first clients
+ * after a restart do not wait on the disk. A mapped file is dropped if it has
+ * changed on disk since it was mapped.
+ *
+ * The index file is the magic "TFTPHOT", a version byte, the amount of
+ * entries (int) and then the name (UTF) and count (long) of each file.
+ *
+ * @author Eli Murray
+ * @version 1.0
+ * @see TftpServer
+ * @see BlockPrefetcher
+ */
+public class HotFileIndex {
+
+   // start of every index file
+   private static final byte[] MAGIC = "TFTPHOT".getBytes();
+
+   // version of the index layout
+   private static final byte VERSION = 1;
+
+   // most files kept in the index
+   private static final int MAX_ENTRIES = 256;
+
+   /**
+    * A file mapped into memory and what it looked like on disk when mapped
+    */
+   private static class Mapped {
+      final MappedByteBuffer buffer;
+      final long size;
+      final long modified;
+
+      Mapped(MappedByteBuffer buffer, long size, long modified) {
+         this.buffer = buffer;
+         this.size = size;
+         this.modified = modified;
+      }
+   }
+
+   // where the index is saved
+   private final Path indexFile;
+
+   // most bytes to map when warming up
+   private final long budget;
+
+   // requests for each file
+   private final Map<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+
+   // files mapped when warming up, by name
+   private final Map<String, Mapped> mapped = new ConcurrentHashMap<String, Mapped>();
+
+   /**
+    * Creates an index saved to a file
+    *
+    * @param indexFile where the index is saved
+    * @param budget    most bytes to map when warming up, 0 to not warm up
+    */
+   public HotFileIndex(Path indexFile, long budget) {
+      this.indexFile = indexFile;
+      this.budget = budget;
+   }
+
+   /**
+    * Checks if a file is where the index is saved, or the temp file it is
+    * written to first
+    *
+    * @param path the file to check
+    * @return true if it is the index or its temp file
+    */
+   public boolean isIndexFile(Path path) {
+      Path target = indexFile.toAbsolutePath().normalize();
+      Path absolute = path.toAbsolutePath().normalize();
+      return absolute.equals(target) || absolute.equals(target.resolveSibling(target.getFileName() + ".tmp"));
+   }
+
+   /**
+    * Reads the counts saved by the last run. The counts are halved, rounding
+    * up, so files that stop being asked for are passed by ones that are.
+    * A missing index is an empty one.
+    *
+    * @throws IOException if the index can not be read
+    */
+   public void load() throws IOException {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+         byte[] magic = new byte[MAGIC.length];
+         in.readFully(magic);
+         if (!Arrays.equals(magic, MAGIC) || in.readByte() != VERSION) {
+            throw new IOException(indexFile + " is not a hot file index");
+         }
+         int entries = in.readInt();
+         for (int i = 0; i < entries; i++) {
+            String filename = in.readUTF();
+            long count = (in.readLong() + 1) / 2;
+            if (count > 0) {
+               counts.put(filename, new AtomicLong(count));
+            }
+         }
+      } catch (NoSuchFileException e) {
+         // first run
+      }
+   }
+
+   /**
+    * Counts a request for a file
+    *
+    * @param filename the file requested
+    */
+   public void hit(String filename) {
+      counts.computeIfAbsent(filename, f -> new AtomicLong()).incrementAndGet();
+   }
+
+   /**
+    * Saves the most requested files and their counts. The index is written
+    * to a temp file and synced, then moved over the old one and the directory
+    * synced, so a crash never leaves half an index.
+    *
+    * @throws IOException if the index can not be written
+    */
+   public synchronized void save() throws IOException {
+      List<Map.Entry<String, Long>> hottest = Hottest();
+      Path target = indexFile.toAbsolutePath();
+      Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+         out.write(MAGIC);
+         out.writeByte(VERSION);
+         out.writeInt(hottest.size());
+         for (Map.Entry<String, Long> e : hottest) {
+            out.writeUTF(e.getKey());
+            out.writeLong(e.getValue());
+         }
+         out.flush();
+         channel.force(true);
+      }
+      Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+      // sync the directory so the move itself is on disk
+      try (FileChannel dir = FileChannel.open(target.getParent(), StandardOpenOption.READ)) {
+         dir.force(true);
+      } catch (IOException e) {
+         // some file systems can not sync a directory
+      }
+   }
+
+   /**
+    * Starts mapping the files in the index into memory on a background
+    * thread, most requested first, until the budget is used. Files too big
+    * for what is left of the budget are skipped.
+    *
+    * @return the thread doing the warm up
+    */
+   public Thread warmUp() {
+      Thread t = new Thread(() -> {
+         long start = System.nanoTime();
+         long used = 0;
+         for (Map.Entry<String, Long> e : Hottest()) {
+            if (used >= budget) {
+               break;
+            }
+            String filename = e.getKey();
+            try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+               long modified = Files.getLastModifiedTime(Paths.get(filename)).toMillis();
+               long size = channel.size();
+               if (size == 0 || size > Integer.MAX_VALUE || used + size > budget) {
+                  continue;
+               }
+
+               // map then touch every page so the first request does not fault
+               MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+               buffer.load();
+               mapped.put(filename, new Mapped(buffer, size, modified));
+               used += size;
+            } catch (IOException ex) {
+               // gone or unreadable since the index was saved
+            }
+         }
+         System.out.println("Warmed up " + mapped.size() + " files, " + used / 1024 + " KB in "
+               + (System.nanoTime() - start) / 1_000_000 + "ms");
+      }, "tftp-warmup");
+      t.setDaemon(true);
+      t.setPriority(Thread.MIN_PRIORITY);
+      t.start();
+      return t;
+   }
+
+   /**
+    * Returns a file from memory if it was mapped and has not changed on disk
+    * since
+    *
+    * @param filename the file requested
+    * @return a read only buffer of the whole file, null if it is not mapped
+    */
+   public ByteBuffer get(String filename) {
+      Mapped m = mapped.get(filename);
+      if (m == null) {
+         return null;
+      }
+      try {
+         Path path = Paths.get(filename);
+         if (Files.size(path) == m.size && Files.getLastModifiedTime(path).toMillis() == m.modified) {
+            return m.buffer.asReadOnlyBuffer();
+         }
+      } catch (IOException e) {
+         // gone, drop it below
+      }
+      mapped.remove(filename, m);
+      return null;
+   }
+
+   /**
+    * Drops a file from memory, for when it has been replaced
+    *
+    * @param filename the file replaced
+    */
+   public void forget(String filename) {
+      mapped.remove(filename);
+   }
+
+   /**
+    * Returns the most requested files, most first
+    *
+    * @return up to MAX_ENTRIES names and counts
+    */
+   private List<Map.Entry<String, Long>> Hottest() {
+      List<Map.Entry<String, Long>> all = new ArrayList<Map.Entry<String, Long>>();
+      for (Map.Entry<String, AtomicLong> e : counts.entrySet()) {
+         all.add(Map.entry(e.getKey(), e.getValue().get()));
+      }
+      all.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+      return all.subList(0, Math.min(MAX_ENTRIES, all.size()));
+   }
+}
@@ -0,0 +1,352 @@
+// Eli Murray
+// 1626960
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The PacketTrace class records every datagram sent and received on traced
+ * sockets to a compact binary file, with the time since the trace started.
+ * A trace is made either by the server or by a client, which is kept in the
+ * header so a replay knows which side sent the requests.
+ *
+ * The file is the magic "TFTPTRC", a version byte and a role byte, then one
+ * record per datagram: time in nanos (long), sent or received (byte), local
+ * port (short), remote address length and bytes, remote port (short), data
+ * length (short), bytes kept (short) and the bytes kept. Data packets keep
+ * only their type and block number, every other packet is kept whole.
+ *
+ * Records are handed to a writer thread so a transfer never waits on the
+ * disk. If the writer falls too far behind records are dropped and counted.
+ *
+ * @author Eli Murray
+ * @version 1.0
+ * @see TraceReplay
+ */
+public class PacketTrace implements AutoCloseable {
+
+   /**
+    * role of a trace made by a client
+    */
+   public static final byte CLIENT = 0;
+
+   /**
+    * role of a trace made by the server
+    */
+   public static final byte SERVER = 1;
+
+   // start of every trace file
+   private static final byte[] MAGIC = "TFTPTRC".getBytes();
+
+   // version of the record layout
+   private static final byte VERSION = 2;
+
+   // data packet type 2, only its header is kept
+   private static final byte DATA = 2;
+
+   // most records waiting for the writer
+   private static final int QUEUE = 1 << 16;
+
+   // millis between writes to disk
+   private static final long FLUSH = 1000;
+
+   /**
+    * One recorded datagram
+    */
+   public static class Record {
+
+      /**
+       * nanos since the trace started
+       */
+      public final long time;
+
+      /**
+       * true if sent, false if received
+       */
+      public final boolean sent;
+
+      /**
+       * port of the socket it went through
+       */
+      public final int localPort;
+
+      /**
+       * the other end
+       */
+      public final InetSocketAddress remote;
+
+      /**
+       * the datagram, zeros after the block number of a data packet
+       */
+      public final byte[] data;
+
+      /**
+       * Creates a record
+       *
+       * @param time      nanos since the trace started
+       * @param sent      true if sent, false if received
+       * @param localPort port of the socket it went through
+       * @param remote    the other end
+       * @param data      the datagram
+       */
+      public Record(long time, boolean sent, int localPort, InetSocketAddress remote, byte[] data) {
+         this.time = time;
+         this.sent = sent;
+         this.localPort = localPort;
+         this.remote = remote;
+         this.data = data;
+      }
+   }
+
+   // who made the trace
+   private final byte role;
+
+   // where records go, only used by the writer
+   private final DataOutputStream out;
+
+   // when the trace started
+   private final long start = System.nanoTime();
+
+   // records waiting to be written
+   private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE);
+
+   // records dropped because the queue was full
+   private final AtomicLong dropped = new AtomicLong();
+
+   // set once no more records are taken
+   private volatile boolean closed = false;
+
+   // writes the records to the file
+   private final Thread writer;
+
+   /**
+    * Starts a trace file, replacing it if it is there
+    *
+    * @param path the file to write
+    * @param role CLIENT or SERVER
+    * @throws IOException if the file can not be written
+    */
+   public PacketTrace(Path path, byte role) throws IOException {
+      this.role = role;
+      this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+      out.write(MAGIC);
+      out.writeByte(VERSION);
+      out.writeByte(role);
+
+      writer = new Thread(this::Write, "tftp-trace");
+      writer.setDaemon(true);
+      writer.start();
+   }
+
+   /**
+    * Returns who made the trace
+    *
+    * @return CLIENT or SERVER
+    */
+   public byte getRole() {
+      return role;
+   }
+
+   /**
+    * Returns how many records were dropped because the writer fell behind
+    *
+    * @return the amount of records dropped
+    */
+   public long getDropped() {
+      return dropped.get();
+   }
+
+   /**
+    * Records a datagram. The record is queued for the writer, if the queue is
+    * full it is dropped so tracing never holds up a transfer.
+    *
+    * @param sent      true if sent, false if received
+    * @param localPort port of the socket it went through
+    * @param p         the datagram
+    */
+   public void record(boolean sent, int localPort, DatagramPacket p) {
+      if (closed) {
+         return;
+      }
+      long time = System.nanoTime() - start;
+      byte[] address = p.getAddress().getAddress();
+      int length = p.getLength();
+      int kept = length > 0 && p.getData()[p.getOffset()] == DATA ? Math.min(2, length) : length;
+
+      ByteBuffer record = ByteBuffer.allocate(18 + address.length + kept);
+      record.putLong(time);
+      record.put((byte) (sent ? 1 : 0));
+      record.putShort((short) localPort);
+      record.put((byte) address.length);
+      record.put(address);
+      record.putShort((short) p.getPort());
+      record.putShort((short) length);
+      record.putShort((short) kept);
+      record.put(p.getData(), p.getOffset(), kept);
+
+      if (!queue.offer(record.array())) {
+         dropped.incrementAndGet();
+      }
+   }
+
+   /**
+    * Writes out the records still queued and closes the file
+    *
+    * @throws IOException if the file can not be closed
+    */
+   public void close() throws IOException {
+      closed = true;
+      writer.interrupt();
+      try {
+         writer.join();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      if (dropped.get() > 0) {
+         System.out.println("Trace dropped " + dropped.get() + " records");
+      }
+   }
+
+   /**
+    * Runs on the writer thread, writing records as they are queued and
+    * flushing the file every second, until the trace is closed and the queue
+    * is empty
+    */
+   private void Write() {
+      long lastFlush = System.nanoTime();
+      try {
+         for (;;) {
+            byte[] record;
+            try {
+               record = closed ? queue.poll() : queue.poll(FLUSH, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+               // closed, drain what is left
+               continue;
+            }
+            if (record == null && closed) {
+               break;
+            }
+            if (record != null) {
+               out.write(record);
+            }
+            if (record == null || System.nanoTime() - lastFlush > FLUSH * 1_000_000) {
+               out.flush();
+               lastFlush = System.nanoTime();
+            }
+         }
+      } catch (IOException e) {
+         System.out.println("Error writing trace");
+         closed = true;
+         queue.clear();
+      } finally {
+         try {
+            out.close();
+         } catch (IOException e) {
+            System.out.println("Error closing trace");
+         }
+      }
+   }
+
+   /**
+    * Opens a socket that records what goes through it in a trace
+    *
+    * @param trace the trace to record to, null for a plain socket
+    * @param port  the port to listen on, 0 for any
+    * @return the socket
+    * @throws SocketException if the socket can not be opened
+    */
+   public static DatagramSocket open(PacketTrace trace, int port) throws SocketException {
+      if (trace == null) {
+         return new DatagramSocket(port);
+      }
+      return new TracedSocket(trace, port);
+   }
+
+   /**
+    * Reads a trace file. A trace that ends part way through a record, from a
+    * process that was killed, is read up to the last whole record.
+    *
+    * @param path the file to read
+    * @param role an array of one to put the role of the trace in
+    * @return the records in the order they were made
+    * @throws IOException if the file is not a trace or can not be read
+    */
+   public static List<Record> read(Path path, byte[] role) throws IOException {
+      List<Record> records = new ArrayList<Record>();
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+         byte[] magic = new byte[MAGIC.length];
+         in.readFully(magic);
+         if (!Arrays.equals(magic, MAGIC) || in.readByte() != VERSION) {
+            throw new IOException(path + " is not a trace");
+         }
+         role[0] = in.readByte();
+
+         // a trace cut off by a crash can end part way through a record,
+         // the records before it are kept
+         try {
+            for (;;) {
+               long time = in.readLong();
+               boolean sent = in.readByte() == 1;
+               int localPort = in.readUnsignedShort();
+               byte[] address = new byte[in.readUnsignedByte()];
+               in.readFully(address);
+               int port = in.readUnsignedShort();
+               byte[] data = new byte[in.readUnsignedShort()];
+               in.readFully(data, 0, in.readUnsignedShort());
+               records.add(new Record(time, sent, localPort,
+                     new InetSocketAddress(InetAddress.getByAddress(address), port), data));
+            }
+         } catch (EOFException e) {
+            // end of the trace
+         }
+      }
+
+      // records from different threads can be queued slightly out of order
+      records.sort(Comparator.comparingLong(r -> r.time));
+      return records;
+   }
+
+   /**
+    * A socket that records each datagram it sends and receives
+    */
+   private static class TracedSocket extends DatagramSocket {
+
+      // the trace to record to
+      private final PacketTrace trace;
+
+      TracedSocket(PacketTrace trace, int port) throws SocketException {
+         super(port);
+         this.trace = trace;
+      }
+
+      public void send(DatagramPacket p) throws IOException {
+         trace.record(true, getLocalPort(), p);
+         super.send(p);
+      }
+
+      public void receive(DatagramPacket p) throws IOException {
+         super.receive(p);
+         trace.record(false, getLocalPort(), p);
+      }
+   }
+}
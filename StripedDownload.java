@@ -0,0 +1,264 @@
+// Eli Murray
+// 1626960
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The StripedDownload class fetches one file from several servers at once.
+ * The size is asked for with tsize, then the file is split into ranges of
+ * blocks which are handed out to one thread per server. Each block is
+ * written straight to its place in the sink.
+ * A range from a server that stops responding is put back for another
+ * server, and a server with nothing left to do takes the second half of the
+ * range with the most blocks left, so a slow server does not hold up the end.
+ *
+ * @author Eli Murray
+ * @version 1.0
+ * @see TftpRangeFetcher
+ * @see BlockRange
+ * @see TransferSink
+ */
+public class StripedDownload {
+
+   // most blocks handed out in one range
+   private static final int RANGE_BLOCKS = 256;
+
+   // a range with fewer blocks left than this is not split
+   private static final int MIN_SPLIT = 32;
+
+   // failures in a row before a server is dropped
+   private static final int MAX_FAILURES = 3;
+
+   // wait after a failure before a server takes another range in millis
+   private static final int BACKOFF = 500;
+
+   // time outs in a row before a range is given away
+   private static final int STALL_RETRIES = 2;
+
+   // the servers to fetch from
+   private final List<InetSocketAddress> servers;
+
+   // the file to fetch
+   private final String filename;
+
+   // options for each range, with fewer retries so stalls are noticed sooner
+   private final TransferOptions options;
+
+   // ranges waiting for a server
+   private final Deque<BlockRange> queue = new ArrayDeque<BlockRange>();
+
+   // ranges being fetched
+   private final List<BlockRange> active = new ArrayList<BlockRange>();
+
+   // where the blocks are written
+   private TransferSink out;
+
+   // time outs waited through by all servers
+   private long retries = 0;
+
+   /**
+    * Creates a download of a file from several servers
+    *
+    * @param servers  the servers that all have the file
+    * @param filename the file to fetch
+    * @param options  the options for the transfer
+    */
+   public StripedDownload(List<InetSocketAddress> servers, String filename, TransferOptions options) {
+      this.servers = servers;
+      this.filename = filename;
+      this.options = new TransferOptions()
+            .blockSize(options.getBlockSize())
+            .windowSize(options.getWindowSize())
+            .timeout(options.getTimeout())
+            .retries(Math.min(options.getRetries(), STALL_RETRIES))
+            .trace(options.getTrace());
+   }
+
+   /**
+    * Returns how many time outs were waited through by all servers
+    *
+    * @return the amount of time outs
+    */
+   public synchronized long getRetries() {
+      return retries;
+   }
+
+   /**
+    * Fetches the file into a sink. The sink is not closed.
+    *
+    * @param sink where to write the file, it must be positional
+    * @return the size of the file in bytes
+    * @throws IOException if no server knows the size or some blocks could not
+    *                     be fetched from any server
+    */
+   public long download(TransferSink sink) throws IOException {
+      if (!sink.isPositional()) {
+         throw new IOException("striped download needs a positional sink");
+      }
+
+      long size = probeSize();
+      int blockSize = options.getBlockSize();
+      int blockCount = (int) ((size + blockSize - 1) / blockSize);
+      sink.size(size);
+
+      // split so every server gets at least one range to start with
+      int perRange = (blockCount + servers.size() - 1) / servers.size();
+      perRange = Math.max(1, Math.min(RANGE_BLOCKS, perRange));
+      for (int first = 1; first <= blockCount; first += perRange) {
+         queue.add(new BlockRange(first, Math.min(blockCount, first + perRange - 1)));
+      }
+
+      out = sink;
+
+      // one thread per server
+      List<Thread> threads = new ArrayList<Thread>();
+      for (InetSocketAddress server : servers) {
+         Thread t = new Thread(() -> work(server));
+         threads.add(t);
+         t.start();
+      }
+      for (Thread t : threads) {
+         try {
+            t.join();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("download interrupted");
+         }
+      }
+
+      synchronized (this) {
+         if (!queue.isEmpty()) {
+            throw new IOException("no server could send blocks " + queue.peek());
+         }
+      }
+
+      return size;
+   }
+
+   /**
+    * Asks each server in turn for the size of the file until one answers
+    *
+    * @return the size of the file in bytes
+    * @throws IOException if no server answers
+    */
+   private long probeSize() throws IOException {
+      IOException last = new IOException("no servers given");
+      for (InetSocketAddress server : servers) {
+         try {
+            return new TftpRangeFetcher(server, options).probeSize(filename);
+         } catch (IOException e) {
+            System.out.println(e.getMessage());
+            last = e;
+         }
+      }
+      throw last;
+   }
+
+   /**
+    * Fetches ranges from one server until there are none left or the server
+    * has failed too many times in a row
+    *
+    * @param server the server to fetch from
+    */
+   private void work(InetSocketAddress server) {
+      TftpRangeFetcher fetcher = new TftpRangeFetcher(server, options);
+      int failures = 0;
+
+      try {
+         BlockRange range;
+         while (failures < MAX_FAILURES && (range = take()) != null) {
+            try {
+               fetcher.fetch(filename, range, out);
+               failures = 0;
+            } catch (IOException e) {
+               failures++;
+               System.out.println("range " + range + " failed: " + e.getMessage());
+            } finally {
+               giveBack(range);
+            }
+
+            // back off so a working server takes the range given back first
+            if (failures > 0 && failures < MAX_FAILURES) {
+               Thread.sleep(BACKOFF * failures);
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+
+      if (failures == MAX_FAILURES) {
+         System.out.println("dropping server " + server);
+      }
+
+      synchronized (this) {
+         retries += fetcher.getRetries();
+      }
+   }
+
+   /**
+    * Takes the next range to fetch. If there are none waiting the range with
+    * the most blocks left is split. If that is too small it waits in case a
+    * range is given back.
+    *
+    * @return the range to fetch, null if the download is done
+    * @throws InterruptedException if interrupted while waiting
+    */
+   private synchronized BlockRange take() throws InterruptedException {
+      for (;;) {
+         BlockRange range = queue.poll();
+         if (range == null) {
+            range = split();
+         }
+         if (range != null) {
+            active.add(range);
+            return range;
+         }
+         if (active.isEmpty()) {
+            return null;
+         }
+         wait();
+      }
+   }
+
+   /**
+    * Splits the range with the most blocks left in two. Its end is moved down
+    * so the server fetching it stops half way.
+    *
+    * @return the second half of the range, null if no range is big enough
+    */
+   private BlockRange split() {
+      BlockRange biggest = null;
+      for (BlockRange r : active) {
+         if (biggest == null || r.remaining() > biggest.remaining()) {
+            biggest = r;
+         }
+      }
+      if (biggest == null || biggest.remaining() < MIN_SPLIT) {
+         return null;
+      }
+
+      int last = biggest.last;
+      int middle = biggest.next + biggest.remaining() / 2;
+      biggest.last = middle - 1;
+      return new BlockRange(middle, last);
+   }
+
+   /**
+    * Gives back a range once its fetch has ended. Any blocks not fetched are
+    * put back at the front of the queue for the next server.
+    *
+    * @param range the range that was being fetched
+    */
+   private synchronized void giveBack(BlockRange range) {
+      active.remove(range);
+      if (range.remaining() > 0) {
+         queue.addFirst(new BlockRange(range.next, range.last));
+      }
+      notifyAll();
+   }
+}
@@ -3,282 +3,382 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * TftpClient is a simple implementation of a Trivial File Transfer Protocol
  * (TFTP) client.
- * 
- * This client can request a file from a TFTP server and save it to a specified
- * location.
- * It handles communication over UDP, sending requests, and receiving data
- * packets from the server.
- * 
- * Usage: java TftpClient <server> <port> <filePath> <saveLocation>
+ *
+ * A client object can fetch many files at once, each fetch runs on its own
+ * socket and returns a future that completes when the file has been received.
+ * The blocks of the file go to a sink, which can be a file, a buffer or a
+ * stream. Block size, window size and time outs can be set for each fetch.
+ *
+ * When a file is on several servers it can be fetched from all of them at
+ * once, each server sending a different range of blocks.
+ *
+ * Files can also be stored on a server with a write request, from a file or
+ * a buffer.
+ *
+ * Usage: java TftpClient [-b blksize] [-w windowsize] [-t timeout] <server>
+ * <port> <filePath> <saveLocation>
+ *
+ * Usage: java TftpClient [-b blksize] [-w windowsize] [-t timeout] -u
+ * <server> <port> <localFile> <remoteName>
+ *
+ * Usage: java TftpClient [-b blksize] [-w windowsize] [-t timeout] -m
+ * <server[:port],server[:port],...> <filePath> <saveLocation>
+ *
+ * Any of these can take -r traceFile to record every datagram of the
+ * transfer for TraceReplay.
+ *
+ * @see TransferSink
+ * @see TransferSource
+ * @see TransferOptions
+ * @see TransferResult
+ * @see PacketTrace
  */
-public class TftpClient {
+public class TftpClient implements AutoCloseable {
 
     /**
-     * DatagramSocket used for sending and receiving packets.
-     * 
-     * @see DatagramSocket
-     * @see TftpWorker
+     * The port TFTP servers listen on by default.
+     *
+     * @see TftpServer
      */
-    private static DatagramSocket ds;
+    public static final int DEFAULT_PORT = 69;
 
     /**
-     * The port on which the TFTP server is listening, default is 69.
-     * 
-     * @see TftpServer
+     * Runs the fetches.
      */
-    private static int port = 69;
+    private final ExecutorService executor;
 
     /**
-     * The InetAddress of the TFTP server to connect to.
-     * 
-     * @see TftpServer
-     * @see InetAddress
+     * True if the executor was made by this client and should be shut down
+     * with it.
      */
-    private static InetAddress serverAddress;
+    private final boolean ownsExecutor;
 
     /**
-     * The port number of the server, which will be set upon the first response.
+     * Options used when a fetch is not given any.
      */
-    private static int serverPort = 0;
+    private final TransferOptions defaults;
 
     /**
-     * The complete path to the file to be requested from the server.
+     * Creates a client with default options.
      */
-    private static String filename;
+    public TftpClient() {
+        this(new TransferOptions());
+    }
 
     /**
-     * The path where the received file will be saved.
+     * Creates a client that runs fetches on its own threads.
+     *
+     * @param defaults options used when a fetch is not given any
      */
-    private static String saveLocation = "received_";
+    public TftpClient(TransferOptions defaults) {
+        this.defaults = defaults;
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "tftp-client");
+            t.setDaemon(true);
+            return t;
+        });
+        this.ownsExecutor = true;
+    }
 
     /**
-     * Buffer to hold the response data received from the server.
+     * Creates a client that runs fetches on the given executor.
+     *
+     * @param defaults options used when a fetch is not given any
+     * @param executor runs the fetches, it is not shut down with the client
      */
-    private static byte[] repsonseBuffer;
+    public TftpClient(TransferOptions defaults, ExecutorService executor) {
+        this.defaults = defaults;
+        this.executor = executor;
+        this.ownsExecutor = false;
+    }
 
     /**
-     * Main method to execute the TFTP client.
-     * 
-     * @param args Command line arguments for server address, port, file path, and
-     *             save location.
+     * Fetches a file from a server with the default options.
+     *
+     * @param server the address and port of the server
+     * @param file   the file to fetch
+     * @param sink   where to write the file, closed when the fetch ends
+     * @return a future completing with the result, or with the IOException
+     *         that stopped the fetch
      */
-    public static void main(String[] args) {
-        try {
-            // check for correct number of arguments
-            // if (args.length != 4) {
-            // System.err.println("Usage: java TftpClient <server> <port> <filePath>
-            // <savelocation>");
-            // System.exit(1);
-            // }
-
-            // // parse arguments given
-            // serverAddress = InetAddress.getByName(args[0]);
-            // serverPort = Integer.parseInt(args[1]);
-            // filename = args[2];
-            // saveLocation = args[3];
-
-            serverAddress = InetAddress.getByName("127.0.0.1");
-            serverPort = Integer.parseInt("69");
-            filename = "test.java";
-            saveLocation = "lol";
-
-            System.out.println("Server: " + serverAddress.getHostAddress());
-            System.out.println("Server port: " + serverPort);
-            System.out.println("Requesting: " + filename);
-            System.out.println("Saving to: " + saveLocation);
-
-            // create socket to file requesting server
-            ds = new DatagramSocket();
-
-            // create request message
-            byte[] data = filename.getBytes();
-            byte type = 1; // Read Request (RRQ)
-            byte[] message = new byte[data.length + 1];
-            message[0] = type;
-            System.arraycopy(data, 0, message, 1, data.length);
-
-            // send request
-            DatagramPacket packet = new DatagramPacket(message, 0, message.length, serverAddress, port);
-            ds.send(packet);
-
-            // prepare block numbers for later checking
-            byte responseBlockNumber = 0;
-            byte prevBlockNumber = -1;
-
-            // get response
-            for (;;) {
-                // set up buffer, packet, and set timeout
-                byte[] buf = new byte[1472];
-                DatagramPacket p = new DatagramPacket(buf, 1472);
-                ds.setSoTimeout(30000);
-
-                // get response from server, if server does not respond in 30 seconds close the
-                // connection
-                for (;;) {
-                    try {
-                        ds.receive(p);
-
-                        // check if worker port is set then set
-                        if (serverPort == 0) {
-                            serverPort = p.getPort();
-                        }
-                        break;
-                    } catch (SocketTimeoutException e) {
-                        System.out.println("Server not responding... closing connection");
-                        return;
-                    }
-                }
-
-                // make TftpPacket from response
-                TftpPacket handledPacket = new TftpPacket(p);
-
-                // handle response
-                responseBlockNumber = handleClientPacket(handledPacket);
-
-                // check for duplicate data packet
-                if (responseBlockNumber - 1 == prevBlockNumber) {
-                    WriteToFile(repsonseBuffer);
-                    prevBlockNumber = responseBlockNumber;
-                } else {
-                    System.out.println("Duplicate block received, not writing to file");
-                }
-
-                // send back ACK
-                DatagramPacket ackPacket = new DatagramPacket(new byte[] { 0, responseBlockNumber }, 2, serverAddress,
-                        serverPort);
+    public CompletableFuture<TransferResult> fetch(InetSocketAddress server, String file, TransferSink sink) {
+        return fetch(server, file, sink, defaults);
+    }
 
-                Acknowledge(ackPacket);
+    /**
+     * Fetches a file from a server.
+     *
+     * @param server  the address and port of the server
+     * @param file    the file to fetch
+     * @param sink    where to write the file, closed when the fetch ends
+     * @param options the options for this fetch
+     * @return a future completing with the result, or with the IOException
+     *         that stopped the fetch
+     */
+    public CompletableFuture<TransferResult> fetch(InetSocketAddress server, String file, TransferSink sink,
+            TransferOptions options) {
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            TftpRangeFetcher fetcher = new TftpRangeFetcher(server, options);
+            try {
+                long bytes = fetcher.fetch(file, null, sink);
+                CloseSink(sink, true);
+                return new TransferResult(file, bytes, fetcher.getRetries(), System.nanoTime() - start);
+            } catch (IOException e) {
+                CloseSink(sink, false);
+                throw new CompletionException(e);
             }
-
-        } catch (Exception e) {
-            // print out any exceptions
-            System.err.println("Exception: " + e.getMessage());
-        }
+        }, executor);
     }
 
     /**
-     * 
-     * Handles the response received from the TFTP server.
-     *
-     * This method processes the incoming TFTP packet, checks for error packets,
-     * and handles the received data. It also determines when all data blocks have
-     * been successfully received and writes the final block to the output file.
+     * Fetches a file from several servers at once with the default options.
      *
-     * @param p The TftpPacket containing the response from the server.
-     * @return The block number of the received data, or -1 if an error occurs.
+     * @param servers the servers that all have the file
+     * @param file    the file to fetch
+     * @param sink    where to write the file, must be positional, closed when
+     *                the fetch ends
+     * @return a future completing with the result, or with the IOException
+     *         that stopped the fetch
+     * @see StripedDownload
      */
-    private static byte handleClientPacket(TftpPacket p) {
-        // convert response to string
-        byte reponseType = p.type;
+    public CompletableFuture<TransferResult> fetchStriped(List<InetSocketAddress> servers, String file,
+            TransferSink sink) {
+        return fetchStriped(servers, file, sink, defaults);
+    }
 
-        // check for error packet
-        try {
-            if (reponseType == 4) {
-                System.out.println(new String(p.data));
+    /**
+     * Fetches a file from several servers at once, each sending a different
+     * range of blocks.
+     *
+     * @param servers the servers that all have the file
+     * @param file    the file to fetch
+     * @param sink    where to write the file, must be positional, closed when
+     *                the fetch ends
+     * @param options the options for this fetch
+     * @return a future completing with the result, or with the IOException
+     *         that stopped the fetch
+     * @see StripedDownload
+     */
+    public CompletableFuture<TransferResult> fetchStriped(List<InetSocketAddress> servers, String file,
+            TransferSink sink, TransferOptions options) {
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            StripedDownload download = new StripedDownload(servers, file, options);
+            try {
+                long bytes = download.download(sink);
+                CloseSink(sink, true);
+                return new TransferResult(file, bytes, download.getRetries(), System.nanoTime() - start);
+            } catch (IOException e) {
+                CloseSink(sink, false);
+                throw new CompletionException(e);
             }
-        } catch (Exception e) {
-            System.err.println("Error packet recived: " + e.getMessage());
-            return -1;
-        }
-
-        // exit if all blocks received
-        if (p.data.length < 512 || p.data.length == 0) {
-            System.out.println("All blocks received");
-            WriteToFile(p.data);
-            System.exit(0);
-        }
-
-        byte blockNumberToRespondWith = p.blockNumber;
-        repsonseBuffer = p.data;
-
-        // return with the block number to acknowledge
-        return blockNumberToRespondWith;
-
+        }, executor);
     }
 
     /**
-     * 
-     * Sends an acknowledgment (ACK) packet back to the TFTP server.
+     * Stores a file on a server with the default options.
      *
-     * This method constructs an ACK packet using the block number from the received
-     * data packet and sends it to the server. The first byte of the ACK packet is
-     * always set to 3 (indicating an ACK), followed by the block number.
+     * @param server the address and port of the server
+     * @param file   the name to store the file as on the server
+     * @param source where to read the file from, closed when the upload ends
+     * @return a future completing with the result once the server has stored
+     *         the file, or with the IOException that stopped the upload
+     */
+    public CompletableFuture<TransferResult> store(InetSocketAddress server, String file, TransferSource source) {
+        return store(server, file, source, defaults);
+    }
+
+    /**
+     * Stores a file on a server.
      *
-     * @param p The DatagramPacket received from the TFTP server containing the data
-     *          to acknowledge.
+     * @param server  the address and port of the server
+     * @param file    the name to store the file as on the server
+     * @param source  where to read the file from, closed when the upload ends
+     * @param options the options for this upload
+     * @return a future completing with the result once the server has stored
+     *         the file, or with the IOException that stopped the upload
+     * @see TftpUploader
      */
-    private static void Acknowledge(DatagramPacket p) {
-        try {
-            // make ack packet
-            byte[] ackData = new byte[2];
-            ackData[0] = 3;
-            ackData[1] = p.getData()[1];
-            DatagramPacket ackPacket = new DatagramPacket(ackData, 2, p.getAddress(), p.getPort());
+    public CompletableFuture<TransferResult> store(InetSocketAddress server, String file, TransferSource source,
+            TransferOptions options) {
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            TftpUploader uploader = new TftpUploader(server, options);
+            try {
+                long bytes = uploader.store(file, source);
+                return new TransferResult(file, bytes, uploader.getRetries(), System.nanoTime() - start);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            } finally {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing source");
+                }
+            }
+        }, executor);
+    }
 
-            // send ack
-            Respond(ackPacket);
-        } catch (Exception e) {
-            System.err.println("Error sending ACK");
+    /**
+     * Shuts down the threads of the client if it made them. Fetches already
+     * started are left to finish.
+     */
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
         }
     }
 
     /**
+     * Closes a sink at the end of a fetch.
      *
-     * Sends a DatagramPacket response to the designated address and port.
-     *
-     * This method attempts to send the provided DatagramPacket using the
-     * established DatagramSocket. If an error occurs during the sending
-     * process, it will print an error message to the console.
-     *
-     * @param p The DatagramPacket to be sent as a response.
+     * @param sink   the sink to close
+     * @param worked true if the fetch worked, a failure to close then fails
+     *               the fetch
      */
-    private static void Respond(DatagramPacket p) {
-        // trys to send the packet
+    private static void CloseSink(TransferSink sink, boolean worked) {
         try {
-            ds.send(p);
-        } catch (Exception e) {
-            System.err.println("Error sending response");
+            sink.close();
+        } catch (IOException e) {
+            if (worked) {
+                throw new CompletionException(e);
+            }
         }
     }
 
     /**
-     * Writes the provided byte array data to a specified file.
-     *
-     * This method attempts to append the given byte array to a file
-     * specified by the `saveLocation` variable. If the file does not
-     * exist, it will be created. Any exceptions during the write process
-     * will be printed to the console.
+     * Main method to execute the TFTP client.
      *
-     * @param data The byte array containing the data to be written to the file.
+     * @param args Command line arguments for options, server address, port,
+     *             file path, and save location.
      */
-    private static void WriteToFile(byte[] data) {
-        // set up file output stream
-        FileOutputStream fos = null;
+    public static void main(String[] args) {
+        TransferOptions options = new TransferOptions();
+        String mirrors = null;
+        String traceFile = null;
+        boolean upload = false;
+        int i = 0;
 
         try {
-            // write data to file
-            File file = new File(saveLocation);
-            fos = new FileOutputStream(file, true);
-            fos.write(data);
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            // finnaly close the file output stream if it is open
-            try {
-                if (fos != null) {
-                    fos.close();
+            // parse options before the arguments
+            for (; i < args.length && args[i].startsWith("-"); i += 2) {
+                if (args[i].equals("-u")) {
+                    upload = true;
+                    i--;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "-b":
+                        options.blockSize(Integer.parseInt(value));
+                        break;
+                    case "-w":
+                        options.windowSize(Integer.parseInt(value));
+                        break;
+                    case "-t":
+                        options.timeout(Integer.parseInt(value));
+                        break;
+                    case "-m":
+                        mirrors = value;
+                        break;
+                    case "-r":
+                        traceFile = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option " + args[i]);
+                }
+            }
+
+            // check for correct number of arguments
+            if (upload && mirrors != null) {
+                throw new IllegalArgumentException("can not upload to several servers");
+            }
+            if (args.length - i != (mirrors == null ? 4 : 2)) {
+                throw new IllegalArgumentException("wrong number of arguments");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java TftpClient [-b blksize] [-w windowsize] [-t timeout] [-r traceFile] "
+                    + "<server> <port> <filePath> <saveLocation>");
+            System.err.println("       java TftpClient [-b blksize] [-w windowsize] [-t timeout] [-r traceFile] "
+                    + "-m <server[:port],...> <filePath> <saveLocation>");
+            System.err.println("       java TftpClient [-b blksize] [-w windowsize] [-t timeout] [-r traceFile] "
+                    + "-u <server> <port> <localFile> <remoteName>");
+            return;
+        }
+
+        try (TftpClient client = new TftpClient(options);
+                PacketTrace trace = traceFile == null ? null
+                        : new PacketTrace(Paths.get(traceFile), PacketTrace.CLIENT)) {
+            options.trace(trace);
+
+            CompletableFuture<TransferResult> result;
+            String filename;
+            String saveLocation;
+
+            if (upload) {
+                // parse arguments given
+                InetSocketAddress server = new InetSocketAddress(InetAddress.getByName(args[i]),
+                        Integer.parseInt(args[i + 1]));
+                String localFile = args[i + 2];
+                filename = args[i + 3];
+
+                System.out.println("Server: " + server);
+                System.out.println("Sending: " + localFile);
+                System.out.println("Storing as: " + filename);
+
+                result = client.store(server, filename, TransferSource.file(Paths.get(localFile)));
+            } else if (mirrors == null) {
+                // parse arguments given
+                InetSocketAddress server = new InetSocketAddress(InetAddress.getByName(args[i]),
+                        Integer.parseInt(args[i + 1]));
+                filename = args[i + 2];
+                saveLocation = args[i + 3];
+
+                System.out.println("Server: " + server);
+                System.out.println("Requesting: " + filename);
+                System.out.println("Saving to: " + saveLocation);
+
+                result = client.fetch(server, filename, TransferSink.file(Paths.get(saveLocation)));
+            } else {
+                // parse servers, each is host or host:port
+                List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+                for (String server : mirrors.split(",")) {
+                    String[] hostPort = server.trim().split(":");
+                    int serverPort = hostPort.length > 1 ? Integer.parseInt(hostPort[1]) : DEFAULT_PORT;
+                    servers.add(new InetSocketAddress(InetAddress.getByName(hostPort[0]), serverPort));
                 }
-            } catch (Exception e2) {
-                System.err.println("Exception2: " + e2);
+                filename = args[i];
+                saveLocation = args[i + 1];
+
+                System.out.println("Servers: " + servers);
+                System.out.println("Requesting: " + filename);
+                System.out.println("Saving to: " + saveLocation);
+
+                result = client.fetchStriped(servers, filename, TransferSink.file(Paths.get(saveLocation)));
             }
+
+            System.out.println(result.join());
+        } catch (CompletionException e) {
+            // print out why the fetch failed
+            System.err.println("Exception: " + e.getCause().getMessage());
+        } catch (Exception e) {
+            // print out any exceptions
+            System.err.println("Exception: " + e.getMessage());
         }
     }
 }
-// changes
-// more chnages
-// even more changes
\ No newline at end of file
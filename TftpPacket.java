@@ -1,6 +1,7 @@
 // Eli Murray
 // 1626960
 
+import java.io.ByteArrayOutputStream;
 import java.net.DatagramPacket;
 import java.util.Arrays;
 import java.util.*;
@@ -8,10 +9,30 @@ import java.util.*;
 /**
  * 
  * * This class encapsulates the structure of a TFTP packet, which includes
- * the packet type (such as Read Request, Data, Acknowledgment, or Error),
- * the block number
+ * the packet type (such as Read Request, Write Request, Data,
+ * Acknowledgment, Error or Option Acknowledgment), the block number and any
+ * options.
+ *
+ * A request is the type followed by the filename, optionally followed by a 0
+ * and then option name and value pairs each ending in a 0.
+ * An option acknowledgment is the type followed by the accepted pairs.
  */
 public class TftpPacket {
+   /**
+    * request packet type
+    */
+   public static final byte RRQ = 1;
+
+   /**
+    * write request packet type
+    */
+   public static final byte WRQ = 5;
+
+   /**
+    * option acknowledgment packet type
+    */
+   public static final byte OACK = 6;
+
    /**
     * the type of packet (RRQ, DATA, ACK, ERROR)
     */
@@ -27,6 +48,11 @@ public class TftpPacket {
     */
    public byte[] data;
 
+   /**
+    * the options of a request or option acknowledgment, empty if there are none
+    */
+   public Map<String, String> options = new LinkedHashMap<String, String>();
+
    /**
     * Constructor for a TFTP packet this takes a DatagramPacket and extracts the
     * type, block number and data
@@ -50,6 +76,64 @@ public class TftpPacket {
          this.data = Arrays.copyOfRange(p.getData(), offset, p.getLength());
       }
 
+      // split the filename from the options of a request
+      if (this.type == RRQ || this.type == WRQ) {
+         int end = 0;
+         while (end < this.data.length && this.data[end] != 0) {
+            end++;
+         }
+         if (end < this.data.length) {
+            this.options = DecodeOptions(Arrays.copyOfRange(this.data, end + 1, this.data.length));
+            this.data = Arrays.copyOfRange(this.data, 0, end);
+         }
+      } else if (this.type == OACK) {
+         this.options = DecodeOptions(this.data);
+      }
+
+   }
+
+   /**
+    * Encodes options as name and value pairs each ending in a 0
+    *
+    * @param options the options to encode
+    * @return the encoded options
+    */
+   public static byte[] EncodeOptions(Map<String, String> options) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      for (Map.Entry<String, String> option : options.entrySet()) {
+         out.writeBytes(option.getKey().getBytes());
+         out.write(0);
+         out.writeBytes(option.getValue().getBytes());
+         out.write(0);
+      }
+      return out.toByteArray();
+   }
+
+   /**
+    * Decodes name and value pairs each ending in a 0. Names are made lower case
+    * and a name without a value is dropped.
+    *
+    * @param data the encoded options
+    * @return the options in the order they were sent
+    */
+   public static Map<String, String> DecodeOptions(byte[] data) {
+      Map<String, String> options = new LinkedHashMap<String, String>();
+      String name = null;
+      int start = 0;
+      for (int i = 0; i < data.length; i++) {
+         if (data[i] != 0) {
+            continue;
+         }
+         String s = new String(data, start, i - start);
+         if (name == null) {
+            name = s.toLowerCase();
+         } else {
+            options.put(name, s);
+            name = null;
+         }
+         start = i + 1;
+      }
+      return options;
    }
 }
 
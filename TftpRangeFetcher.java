@@ -0,0 +1,380 @@
+// Eli Murray
+// 1626960
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * The TftpRangeFetcher class fetches a file, or a range of its blocks, from
+ * one server.
+ * It sends a request with the transfer options, reads the option ack, then
+ * receives the blocks and writes each one at its place in the sink.
+ * Blocks are acked once per window, a lost block is noticed when a later one
+ * arrives and the last block in order is acked so the server resends from
+ * there. Old blocks mean an ack was lost, it is sent again once for each
+ * window of them. Each fetch uses its own socket so many can run at once.
+ *
+ * @author Eli Murray
+ * @version 1.0
+ * @see BlockRange
+ * @see TransferSink
+ * @see StripedDownload
+ * @see TftpWorker
+ */
+public class TftpRangeFetcher {
+
+   // request packet type 1
+   private static final byte RRQ = 1;
+
+   // data packet type 2
+   private static final byte DATA = 2;
+
+   // ack packet type 3
+   private static final byte ACK = 3;
+
+   // error packet type 4
+   private static final byte ERROR = 4;
+
+   // option ack packet type 6
+   private static final byte OACK = 6;
+
+   // the server to fetch from
+   private final InetSocketAddress server;
+
+   // options for each fetch
+   private final TransferOptions options;
+
+   // time outs waited through across all fetches
+   private long retries = 0;
+
+   /**
+    * Creates a fetcher for one server
+    *
+    * @param server  the address and port of the server
+    * @param options the options for each fetch
+    */
+   public TftpRangeFetcher(InetSocketAddress server, TransferOptions options) {
+      this.server = server;
+      this.options = options;
+   }
+
+   /**
+    * Returns the server this fetcher fetches from
+    *
+    * @return the address and port of the server
+    */
+   public InetSocketAddress getServer() {
+      return server;
+   }
+
+   /**
+    * Returns how many time outs were waited through across all fetches
+    *
+    * @return the amount of time outs
+    */
+   public long getRetries() {
+      return retries;
+   }
+
+   /**
+    * Asks the server for the size of a file with the tsize option then ends
+    * the transfer without fetching anything.
+    *
+    * @param filename the file to ask about
+    * @return the size of the file in bytes
+    * @throws IOException if the server does not answer or does not know tsize
+    */
+   public long probeSize(String filename) throws IOException {
+      try (DatagramSocket ds = PacketTrace.open(options.getTrace(), 0)) {
+         ds.setSoTimeout(options.getTimeout() * 1000);
+
+         Map<String, String> requested = options.toRequestOptions();
+         requested.put("tsize", "0");
+
+         DatagramPacket p = Request(ds, MakeRequest(filename, requested), new byte[1472]);
+         TftpPacket reply = new TftpPacket(p);
+         CheckError(reply);
+
+         // got what it needs, tell the worker to stop
+         Abort(ds, p.getAddress(), p.getPort());
+
+         if (reply.type != OACK || !reply.options.containsKey("tsize")) {
+            throw new IOException(server + " does not support tsize");
+         }
+         CheckBlockSize(reply.options);
+         return Long.parseLong(reply.options.get("tsize"));
+      }
+   }
+
+   /**
+    * Fetches a file or a range of its blocks and writes each block at its
+    * place in the sink. The range is read as it goes so if its end is moved
+    * down the fetch stops there and tells the server to stop.
+    *
+    * @param filename the file to fetch
+    * @param range    the blocks to fetch, next is moved on as blocks arrive,
+    *                 null for the whole file
+    * @param sink     where to write the blocks
+    * @return the amount of bytes written
+    * @throws IOException if the server sends an error or stops sending
+    */
+   public long fetch(String filename, BlockRange range, TransferSink sink) throws IOException {
+      try (DatagramSocket ds = PacketTrace.open(options.getTrace(), 0)) {
+         ds.setSoTimeout(options.getTimeout() * 1000);
+
+         boolean ranged = range != null;
+         Map<String, String> requested = options.toRequestOptions();
+         if (ranged) {
+            requested.put("range", range.next + "-" + range.last);
+         } else {
+            // whole file, ask for the size so the sink can be checked first
+            requested.put("tsize", "0");
+            range = new BlockRange(1, Integer.MAX_VALUE);
+         }
+
+         // remember where the server thinks the range ends
+         int requestedLast = range.last;
+
+         // big enough for any option ack, with a small block size it can be
+         // longer than a block
+         byte[] buffer = new byte[1472];
+         DatagramPacket p = Request(ds, MakeRequest(filename, requested), buffer);
+         TftpPacket reply = new TftpPacket(p);
+         CheckError(reply);
+
+         // worker address to send acks to
+         InetAddress workerAddress = p.getAddress();
+         int workerPort = p.getPort();
+
+         try {
+            // what the server agreed to, defaults if it sent data straight away
+            int blockSize = 512;
+            int windowSize = 1;
+
+            // data packet to handle before receiving more
+            TftpPacket pending = null;
+
+            if (reply.type == OACK) {
+               blockSize = Integer.parseInt(reply.options.getOrDefault("blksize", "512"));
+               windowSize = Integer.parseInt(reply.options.getOrDefault("windowsize", "1"));
+               if (ranged && !reply.options.containsKey("range")) {
+                  throw new IOException(server + " does not support range");
+               }
+               if (ranged) {
+                  // the range is counted in blocks of the size asked for
+                  CheckBlockSize(reply.options);
+               }
+               if (reply.options.containsKey("tsize")) {
+                  sink.size(Long.parseLong(reply.options.get("tsize")));
+               }
+
+               // ack 0 to start the blocks
+               Acknowledge(ds, (byte) 0, workerAddress, workerPort);
+            } else if (ranged) {
+               throw new IOException(server + " does not support range");
+            } else {
+               pending = reply;
+            }
+
+            long written = 0;
+            int sinceAck = 0;
+            int quiet = 0;
+            boolean gapAcked = false;
+            int oldBlocks = 0;
+            boolean endOfFile = false;
+
+            // no data yet, the worker is still waiting for ack 0
+            boolean started = pending != null;
+
+            while (!endOfFile && range.next <= range.last) {
+               TftpPacket data = pending;
+               pending = null;
+
+               if (data == null) {
+                  try {
+                     p.setData(buffer);
+                     ds.receive(p);
+                  } catch (SocketTimeoutException e) {
+                     // nothing came, ack the last block in order again
+                     retries++;
+                     quiet++;
+                     if (quiet >= options.getRetries()) {
+                        throw new IOException(server + " stopped responding");
+                     }
+                     Acknowledge(ds, started ? (byte) (range.next - 1) : 0, workerAddress, workerPort);
+                     sinceAck = 0;
+                     continue;
+                  }
+
+                  // ignore anything not from the worker
+                  if (p.getPort() != workerPort || !p.getAddress().equals(workerAddress)) {
+                     continue;
+                  }
+                  data = new TftpPacket(p);
+               }
+
+               CheckError(data);
+               if (data.type == OACK && !started) {
+                  // our ack 0 was lost and the worker sent the option ack again
+                  Acknowledge(ds, (byte) 0, workerAddress, workerPort);
+                  continue;
+               }
+               if (data.type != DATA) {
+                  continue;
+               }
+               started = true;
+
+               // how far behind the expected block this one is
+               int behind = ((range.next & 0xff) - (data.blockNumber & 0xff)) & 0xff;
+
+               if (behind == 0) {
+                  // write block at its place in the file
+                  sink.write((long) (range.next - 1) * blockSize, ByteBuffer.wrap(data.data));
+                  written += data.data.length;
+                  range.next++;
+                  sinceAck++;
+                  quiet = 0;
+                  gapAcked = false;
+                  oldBlocks = 0;
+                  endOfFile = data.data.length < blockSize;
+
+                  // ack the end of each window and the end of the transfer
+                  if (endOfFile || sinceAck == windowSize || range.next > range.last) {
+                     Acknowledge(ds, data.blockNumber, workerAddress, workerPort);
+                     sinceAck = 0;
+                  }
+               } else if (behind <= 128) {
+                  // old block, our ack was lost, send it again once for each
+                  // window resent rather than once for each block
+                  if (oldBlocks++ % windowSize == 0) {
+                     Acknowledge(ds, (byte) (range.next - 1), workerAddress, workerPort);
+                     sinceAck = 0;
+                  }
+               } else if (!gapAcked) {
+                  // a block was lost, ack the last one in order so the server resends from there
+                  Acknowledge(ds, (byte) (range.next - 1), workerAddress, workerPort);
+                  sinceAck = 0;
+                  gapAcked = true;
+               }
+            }
+
+            // the rest of the range was taken by another server
+            if (!endOfFile && range.next <= requestedLast) {
+               Abort(ds, workerAddress, workerPort);
+            }
+
+            return written;
+         } catch (IOException e) {
+            // tell the worker to stop, harmless if it sent the error
+            Abort(ds, workerAddress, workerPort);
+            throw e;
+         }
+      }
+   }
+
+   /**
+    * Makes a request packet for a file with options
+    *
+    * @param filename the file to request
+    * @param options  the options to send with the request
+    * @return the request packet addressed to the server
+    */
+   private DatagramPacket MakeRequest(String filename, Map<String, String> options) {
+      byte[] name = filename.getBytes();
+      byte[] opts = TftpPacket.EncodeOptions(options);
+      byte[] message = new byte[name.length + opts.length + 2];
+      message[0] = RRQ;
+      System.arraycopy(name, 0, message, 1, name.length);
+      System.arraycopy(opts, 0, message, name.length + 2, opts.length);
+      return new DatagramPacket(message, message.length, server);
+   }
+
+   /**
+    * Sends a request and receives the first reply, sending the request again
+    * each time the server is quiet for the time out
+    *
+    * @param ds      the socket to send and receive on
+    * @param request the request packet
+    * @param buffer  the buffer to receive into
+    * @return the packet received
+    * @throws IOException if nothing arrives after every retry
+    */
+   private DatagramPacket Request(DatagramSocket ds, DatagramPacket request, byte[] buffer) throws IOException {
+      DatagramPacket p = new DatagramPacket(buffer, buffer.length);
+      for (int quiet = 0;;) {
+         ds.send(request);
+         try {
+            ds.receive(p);
+            return p;
+         } catch (SocketTimeoutException e) {
+            // request or reply lost, ask again
+            retries++;
+            quiet++;
+            if (quiet >= options.getRetries()) {
+               throw new IOException(server + " stopped responding");
+            }
+         }
+      }
+   }
+
+   /**
+    * Throws if a packet is an error packet
+    *
+    * @param p the packet to check
+    * @throws IOException with the message of the error packet
+    */
+   private void CheckError(TftpPacket p) throws IOException {
+      if (p.type == ERROR) {
+         throw new IOException(server + " sent error: " + new String(p.data));
+      }
+   }
+
+   /**
+    * Throws if the server did not agree to the block size asked for
+    *
+    * @param accepted the options the server accepted
+    * @throws IOException if the block size is different
+    */
+   private void CheckBlockSize(Map<String, String> accepted) throws IOException {
+      int blockSize = Integer.parseInt(accepted.getOrDefault("blksize", "512"));
+      if (blockSize != options.getBlockSize()) {
+         throw new IOException(server + " did not accept blksize " + options.getBlockSize());
+      }
+   }
+
+   /**
+    * Sends an ack for a block
+    *
+    * @param ds          the socket to send on
+    * @param blockNumber the block to ack
+    * @param address     the worker address
+    * @param port        the worker port
+    * @throws IOException if the ack can not be sent
+    */
+   private void Acknowledge(DatagramSocket ds, byte blockNumber, InetAddress address, int port)
+         throws IOException {
+      ds.send(new DatagramPacket(new byte[] { ACK, blockNumber }, 2, address, port));
+   }
+
+   /**
+    * Sends an error packet so the worker stops sending
+    *
+    * @param ds      the socket to send on
+    * @param address the worker address
+    * @param port    the worker port
+    * @throws IOException if the error can not be sent
+    */
+   private void Abort(DatagramSocket ds, InetAddress address, int port) throws IOException {
+      byte[] message = "Transfer cancelled".getBytes();
+      byte[] data = new byte[message.length + 1];
+      data[0] = ERROR;
+      System.arraycopy(message, 0, data, 1, message.length);
+      ds.send(new DatagramPacket(data, data.length, address, port));
+   }
+}
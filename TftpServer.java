@@ -1,9 +1,15 @@
 // Eli Murray
 // 1626960
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class TftpServer {
    /**
@@ -11,11 +17,57 @@ public class TftpServer {
     */
    private static int port = 69;
 
+   /**
+    * Directory files are served from and stored in, no request can leave it
+    */
+   public static Path root = Paths.get("").toAbsolutePath().normalize();
+
    /**
     * List of all workers
     */
    public static List<TftpWorker> workers = new ArrayList<TftpWorker>();
 
+   /**
+    * Timeouts of all workers, ticks every 100ms
+    */
+   public static final TimingWheel timers = new TimingWheel(100, 512);
+
+   /**
+    * Threads workers run on, a worker only holds one while it handles a
+    * datagram or time out
+    */
+   private static final int TRANSFER_THREADS = 8;
+
+   /**
+    * Sockets of all workers, set when the server starts
+    */
+   public static TransferLoop loop = null;
+
+   /**
+    * Records every datagram sent and received, null if not tracing
+    */
+   public static PacketTrace trace = null;
+
+   /**
+    * Where the most requested files are saved by default
+    */
+   private static final String HOT_INDEX = ".tftphot";
+
+   /**
+    * Most MB of hot files mapped at start by default
+    */
+   private static final long WARM_UP_MB = 256;
+
+   /**
+    * How often the most requested files are saved
+    */
+   private static final long HOT_SAVE = 60_000;
+
+   /**
+    * Request counts of files and the files warmed up at start
+    */
+   public static HotFileIndex hotFiles = new HotFileIndex(Paths.get(HOT_INDEX), WARM_UP_MB << 20);
+
    /**
     * 
     * The entry point for the TFTP server application.
@@ -25,10 +77,24 @@ public class TftpServer {
     * port is provided). It continuously listens for incoming DatagramPackets,
     * creating a
     * new TftpWorker for each received packet to handle client requests.
+    * Workers have no thread each, they run on the transfer loop.
     *
     * If the provided port argument is empty, the server will default to port 69.
-    * The method also manages a list of active worker threads, removing any that
-    * are no longer alive.
+    * The method also manages a list of active workers, removing any that
+    * are finished.
+    *
+    * With -r every datagram the server sends and receives is recorded to a
+    * trace file that TraceReplay can play back.
+    *
+    * The most requested files are saved to an index file, -i, every minute.
+    * At start the files in it are mapped into memory in the background while
+    * the server is already listening, up to -m MB of them, 0 to not warm up.
+    *
+    * Files are served from and stored in the directory given with -d, the
+    * working directory by default. Requests for files outside it are refused.
+    *
+    * Usage: java TftpServer [port] [-d directory] [-r traceFile] [-i indexFile]
+    * [-m warmUpMB]
     *
     * @param args Command line arguments where the first argument specifies the
     *             port number
@@ -36,18 +102,63 @@ public class TftpServer {
     */
    public static void main(String[] args) {
       // if port in arg use that port or default 69
-      if (args.length > 0) {
+      int i = 0;
+      if (args.length > 0 && !args[0].startsWith("-")) {
          if (args[0].equals("")) {
             port = 69;
          } else {
             port = Integer.parseInt(args[0]);
          }
+         i++;
+      }
+
+      // options after the port
+      String traceFile = null;
+      String indexFile = HOT_INDEX;
+      long warmUp = WARM_UP_MB;
+      for (; i < args.length; i += 2) {
+         if (i + 1 >= args.length) {
+            System.err.println("missing value for " + args[i]);
+            System.err.println("Usage: java TftpServer [port] [-d directory] [-r traceFile] [-i indexFile] "
+                  + "[-m warmUpMB]");
+            return;
+         }
+         switch (args[i]) {
+            case "-d":
+               root = Paths.get(args[i + 1]).toAbsolutePath().normalize();
+               break;
+            case "-r":
+               traceFile = args[i + 1];
+               break;
+            case "-i":
+               indexFile = args[i + 1];
+               break;
+            case "-m":
+               warmUp = Long.parseLong(args[i + 1]);
+               break;
+            default:
+               System.err.println("unknown option " + args[i]);
+               System.err.println("Usage: java TftpServer [port] [-d directory] [-r traceFile] [-i indexFile] "
+                  + "[-m warmUpMB]");
+               return;
+         }
       }
 
       // create a new DatagramSocket listen on port
       try {
+         // start recording if asked
+         if (traceFile != null) {
+            StartTrace(traceFile);
+         }
+
+         // start mapping hot files, clients are served from disk until they are in
+         StartHotFiles(indexFile, warmUp << 20);
+
+         // every worker socket is received on this, workers run on its pool
+         loop = new TransferLoop(TRANSFER_THREADS);
+
          // create ds on port otherwise set to 69
-         DatagramSocket dataGramSocket = new DatagramSocket(port);
+         DatagramSocket dataGramSocket = PacketTrace.open(trace, port);
          System.out.println("TftpServer is on port " + port);
 
          // infinite loop creating workers
@@ -56,12 +167,8 @@ public class TftpServer {
             byte[] buffer = new byte[1472];
             DatagramPacket packet = new DatagramPacket(buffer, 1472);
 
-            // goes through workers, if alive leave it if not remove
-            for (TftpWorker w : workers) {
-               if (!w.isAlive()) {
-                  workers.remove(w);
-               }
-            }
+            // goes through workers, if finished remove
+            workers.removeIf(TftpWorker::isFinished);
 
             // receive packet
             dataGramSocket.receive(packet);
@@ -86,4 +193,65 @@ public class TftpServer {
 
    }
 
+   /**
+    * Loads the most requested files of the last run and starts warming them
+    * up, then saves them every minute and when the server stops
+    *
+    * @param indexFile where the most requested files are saved
+    * @param budget    most bytes to map at start
+    */
+   private static void StartHotFiles(String indexFile, long budget) {
+      hotFiles = new HotFileIndex(Paths.get(indexFile), budget);
+      try {
+         hotFiles.load();
+      } catch (IOException e) {
+         // start counting again
+         System.err.println("Error reading hot file index: " + e.getMessage());
+      }
+      if (budget > 0) {
+         hotFiles.warmUp();
+      }
+
+      // saved on a thread of its own so disk writes never hold up the timers
+      ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "tftp-index");
+         t.setDaemon(true);
+         return t;
+      });
+      saver.scheduleWithFixedDelay(TftpServer::SaveHotFiles, HOT_SAVE, HOT_SAVE, TimeUnit.MILLISECONDS);
+
+      Runtime.getRuntime().addShutdownHook(new Thread(TftpServer::SaveHotFiles));
+   }
+
+   /**
+    * Saves the most requested files, a failure is printed and tried again
+    * next time
+    */
+   private static void SaveHotFiles() {
+      try {
+         hotFiles.save();
+      } catch (IOException e) {
+         System.err.println("Error saving hot file index: " + e.getMessage());
+      }
+   }
+
+   /**
+    * Starts recording a trace, closed when the server stops
+    *
+    * @param file the trace file
+    * @throws IOException if the trace file can not be made
+    */
+   private static void StartTrace(String file) throws IOException {
+      trace = new PacketTrace(Paths.get(file), PacketTrace.SERVER);
+      System.out.println("Tracing to " + file);
+
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+         try {
+            trace.close();
+         } catch (IOException e) {
+            System.err.println("Error closing trace");
+         }
+      }));
+   }
+
 }
@@ -0,0 +1,231 @@
+// Eli Murray
+// 1626960
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The TftpUploader class sends a file to one server with a write request.
+ * It offers the size of the file as tsize so the server can set the size of
+ * the file up front, then sends a window of blocks at a time and slides on
+ * from the block the server acks. The last ack only comes once the server has
+ * stored the file.
+ *
+ * @author Eli Murray
+ * @version 1.0
+ * @see TransferSource
+ * @see TftpWorker
+ */
+public class TftpUploader {
+
+   // write request packet type 5
+   private static final byte WRQ = 5;
+
+   // data packet type 2
+   private static final byte DATA = 2;
+
+   // ack packet type 3
+   private static final byte ACK = 3;
+
+   // error packet type 4
+   private static final byte ERROR = 4;
+
+   // option ack packet type 6
+   private static final byte OACK = 6;
+
+   // the server to send to
+   private final InetSocketAddress server;
+
+   // options for each upload
+   private final TransferOptions options;
+
+   // time outs waited through across all uploads
+   private long retries = 0;
+
+   /**
+    * Creates an uploader for one server
+    *
+    * @param server  the address and port of the server
+    * @param options the options for each upload
+    */
+   public TftpUploader(InetSocketAddress server, TransferOptions options) {
+      this.server = server;
+      this.options = options;
+   }
+
+   /**
+    * Returns how many time outs were waited through across all uploads
+    *
+    * @return the amount of time outs
+    */
+   public long getRetries() {
+      return retries;
+   }
+
+   /**
+    * Sends a file to the server.
+    *
+    * @param filename the name to store the file as on the server
+    * @param source   where to read the file from
+    * @return the amount of bytes sent
+    * @throws IOException if the server sends an error or stops responding
+    */
+   public long store(String filename, TransferSource source) throws IOException {
+      try (DatagramSocket ds = PacketTrace.open(options.getTrace(), 0)) {
+         ds.setSoTimeout(options.getTimeout() * 1000);
+
+         long size = source.size();
+         Map<String, String> requested = options.toRequestOptions();
+         requested.put("tsize", Long.toString(size));
+
+         // send request
+         byte[] name = filename.getBytes();
+         byte[] opts = TftpPacket.EncodeOptions(requested);
+         byte[] message = new byte[name.length + opts.length + 2];
+         message[0] = WRQ;
+         System.arraycopy(name, 0, message, 1, name.length);
+         System.arraycopy(opts, 0, message, name.length + 2, opts.length);
+         DatagramPacket request = new DatagramPacket(message, message.length, server);
+
+         // wait for the option ack or ack 0, asking again if it does not come
+         byte[] buffer = new byte[1472];
+         DatagramPacket p = new DatagramPacket(buffer, buffer.length);
+         for (int quiet = 0;;) {
+            ds.send(request);
+            try {
+               ds.receive(p);
+               break;
+            } catch (SocketTimeoutException e) {
+               retries++;
+               quiet++;
+               if (quiet >= options.getRetries()) {
+                  throw new IOException(server + " stopped responding");
+               }
+            }
+         }
+         TftpPacket reply = new TftpPacket(p);
+         CheckError(reply);
+
+         // worker address to send blocks to
+         InetAddress workerAddress = p.getAddress();
+         int workerPort = p.getPort();
+
+         try {
+            // what the server agreed to, defaults if it sent ack 0
+            int blockSize = 512;
+            int windowSize = 1;
+            if (reply.type == OACK) {
+               blockSize = Integer.parseInt(reply.options.getOrDefault("blksize", "512"));
+               windowSize = Integer.parseInt(reply.options.getOrDefault("windowsize", "1"));
+            } else if (reply.type != ACK || reply.blockNumber != 0) {
+               throw new IOException(server + " sent an unexpected reply");
+            }
+
+            // every block, if the last one is full an empty block follows it
+            int last = (int) (size / blockSize) + 1;
+
+            // first block not acked yet
+            int base = 0;
+            int quiet = 0;
+
+            while (base < last) {
+               // send the window of blocks
+               int end = Math.min(last, base + windowSize);
+               List<DatagramPacket> window = new ArrayList<DatagramPacket>();
+               for (int i = base; i < end; i++) {
+                  ByteBuffer block = ByteBuffer.allocate((int) Math.min(blockSize, size - (long) i * blockSize));
+                  source.read((long) i * blockSize, block);
+                  byte[] data = new byte[block.position() + 2];
+                  data[0] = DATA;
+                  data[1] = (byte) (i + 1);
+                  System.arraycopy(block.array(), 0, data, 2, block.position());
+                  DatagramPacket packet = new DatagramPacket(data, data.length, workerAddress, workerPort);
+                  ds.send(packet);
+                  window.add(packet);
+               }
+
+               // wait for an ack of a block in the window, newest first
+               int acked = -1;
+               boolean resent = false;
+               while (acked < 0) {
+                  try {
+                     p.setData(buffer);
+                     ds.receive(p);
+                  } catch (SocketTimeoutException e) {
+                     // nothing came, resend the window
+                     retries++;
+                     quiet++;
+                     if (quiet >= options.getRetries()) {
+                        throw new IOException(server + " stopped responding");
+                     }
+                     for (DatagramPacket packet : window) {
+                        ds.send(packet);
+                     }
+                     continue;
+                  }
+
+                  // ignore anything not from the worker
+                  if (p.getPort() != workerPort || !p.getAddress().equals(workerAddress)) {
+                     continue;
+                  }
+
+                  TftpPacket ack = new TftpPacket(p);
+                  CheckError(ack);
+                  if (ack.type != ACK) {
+                     continue;
+                  }
+                  for (int i = end - 1; i >= base; i--) {
+                     if (ack.blockNumber == (byte) (i + 1)) {
+                        acked = i + 1;
+                        break;
+                     }
+                  }
+
+                  // an ack of the block before the window means its first
+                  // block was lost, resend the window now. Only once, each
+                  // resend can bring back more of these acks
+                  if (acked < 0 && ack.blockNumber == (byte) base && !resent) {
+                     for (DatagramPacket packet : window) {
+                        ds.send(packet);
+                     }
+                     resent = true;
+                  }
+               }
+
+               quiet = 0;
+               base = acked;
+            }
+
+            return size;
+         } catch (IOException e) {
+            // tell the worker to stop, harmless if it sent the error
+            byte[] cancel = "Transfer cancelled".getBytes();
+            byte[] data = new byte[cancel.length + 1];
+            data[0] = ERROR;
+            System.arraycopy(cancel, 0, data, 1, cancel.length);
+            ds.send(new DatagramPacket(data, data.length, workerAddress, workerPort));
+            throw e;
+         }
+      }
+   }
+
+   /**
+    * Throws if a packet is an error packet
+    *
+    * @param p the packet to check
+    * @throws IOException with the message of the error packet
+    */
+   private void CheckError(TftpPacket p) throws IOException {
+      if (p.type == ERROR) {
+         throw new IOException(server + " sent error: " + new String(p.data));
+      }
+   }
+}
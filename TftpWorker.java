@@ -3,36 +3,67 @@
 
 import java.io.*;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * The TftpWorker class is a thread that handles a single TFTP request.
+ * The TftpWorker class handles a single TFTP request.
  * A worker is created with a DatagramPacket with request and an id.
  * Worker reads request and gets file name.
- * Reads the file and splits it into blocks of 512 bytes.
+ * Opens the file and reads it in blocks of 512 bytes, reading the next few
+ * blocks ahead while waiting for acks.
  * Sends each block to client and waits for ack with matching block num.
  * If client no response after 5s then resend.
  * If client no response after 30s close connection.
+ * A worker has no thread of its own. Its socket is on the transfer loop
+ * shared by all workers, which hands it each datagram, and its time outs are
+ * on the timing wheel shared by all workers. Both are run one at a time on
+ * the strand of the worker, so a worker waiting for an ack costs a socket
+ * and a timeout and nothing else.
  * End is noticed if block less than 512 or 0
+ * A request can carry options, accepted ones are sent back in an option ack
+ * which the client acks as block 0 before any data is sent.
+ * The tsize option asks for the size of the file and the range option
+ * ("first-last", block numbers from 1) asks for only part of the file so it
+ * can be fetched from several servers at once.
+ * The blksize, windowsize and timeout options change the size of each block,
+ * how many blocks are sent before waiting for an ack and how many seconds to
+ * wait before resending.
+ * A write request works the other way round, the client sends the blocks and
+ * the worker acks them. They are written to a temp file next to the target
+ * which is synced every few MB and at the end, then renamed over the target
+ * so a half written upload is never seen. If the client offers tsize the temp
+ * file is set to that size first.
  * 
  * @author Eli Murray
  * @version 1.0
  * @see DatagramPacket
- * @see DatagramSocket
+ * @see DatagramChannel
  * @see InetAddress
- * @see Thread
+ * @see BlockPrefetcher
+ * @see TransferLoop
+ * @see TimingWheel
  */
-public class TftpWorker extends Thread {
+public class TftpWorker {
 
    // request packet type 1
    private static final byte RRQ = 1;
 
+   // write request packet type 5
+   private static final byte WRQ = 5;
+
    // data packet type 2
    private static final byte DATA = 2;
 
@@ -42,11 +73,42 @@ public class TftpWorker extends Thread {
    // error packet type 4
    private static final byte ERROR = 4;
 
+   // option ack packet type 6
+   private static final byte OACK = 6;
+
+   // biggest block that fits in a 1500 byte ethernet frame
+   private static final int MAX_BLOCK_SIZE = 1468;
+
+   // most blocks sent before waiting for an ack, kept well under half the
+   // block numbers so old acks can not be mistaken for new ones
+   private static final int MAX_WINDOW_SIZE = 64;
+
+   // bytes written to an upload between syncs to disk
+   private static final long SYNC_BYTES = 8 * 1024 * 1024;
+
+   // type of the request
+   private byte type;
+
    // filename
    public String filename;
 
-   // The DatagramSocket used to send and receive packets
-   private DatagramSocket dataSocket;
+   // options sent with the request
+   private Map<String, String> options;
+
+   // size of each block
+   private int blockSize = 512;
+
+   // blocks sent before waiting for an ack
+   private int windowSize = 1;
+
+   // time to wait for an ack before resending in millis
+   private int timeout = 5000;
+
+   // runs the datagrams and time outs of this worker one at a time
+   private final TransferLoop.Strand strand = TftpServer.loop.strand();
+
+   // The socket used to send and receive packets, on the transfer loop
+   private final DatagramChannel dataSocket;
 
    // client add
    private InetAddress clientAddress;
@@ -57,6 +119,64 @@ public class TftpWorker extends Thread {
    // worker port
    private int workerPort;
 
+   // set once the transfer is over and the socket closed
+   private volatile boolean finished = false;
+
+   // resends the last packets if the client goes quiet
+   private Retransmit retransmit = null;
+
+   // the file being sent and its blocks, null for an upload
+   private Path path = null;
+   private BlockPrefetcher blocks = null;
+
+   // first block to send starting from 0
+   private int first = 0;
+
+   // the block to stop before
+   private int last = 0;
+
+   // first block not acked yet, -1 while waiting for the ack of the option ack
+   private int base = -1;
+
+   // the block after the window sent
+   private int end = 0;
+
+   // set if the window holds the last block
+   private boolean lastBlock = false;
+
+   // set once the window was resent for an ack of the block before it
+   private boolean resent = false;
+
+   // the temp file of an upload, null for a read
+   private FileChannel out = null;
+
+   // where the upload is written and where it is stored
+   private Path temp;
+   private Path target;
+
+   // next block of the upload expected, block numbers start at 1
+   private int next = 1;
+
+   // upload blocks since the last ack, old blocks since the last new one
+   private int sinceAck = 0;
+   private int oldBlocks = 0;
+
+   // set once the last block out of order was acked
+   private boolean gapAcked = false;
+
+   // bytes of the upload so far and since the last sync
+   private long size = 0;
+   private long unsynced = 0;
+
+   // the last ack of the upload sent
+   private DatagramPacket lastAck = null;
+
+   // set once the upload is stored
+   private boolean stored = false;
+
+   // set while staying after the last ack of an upload
+   private boolean dallying = false;
+
    /**
     * Returns the port the worker is listening on
     * 
@@ -66,267 +186,699 @@ public class TftpWorker extends Thread {
       return workerPort;
    }
 
+   /**
+    * Returns true once the transfer is over
+    *
+    * @return true if the worker is done
+    */
+   public boolean isFinished() {
+      return finished;
+   }
+
    /**
     *
     * Constructs a TftpWorker instance to handle incoming TFTP requests.
     * 
     * This constructor processes the request packet, initializes the worker's
-    * parameters, and creates a new DatagramSocket for communication.
-    * 
-    * 
-    *
+    * parameters, and opens a socket on the transfer loop for communication.
     * 
     * @param req the request packet to process
-    * @throws SocketException
-    * @throws SecurityException
+    * @throws IOException if the socket can not be opened
     * 
     * @see DatagramPacket
-    * @see DatagramSocket
+    * @see DatagramChannel
     * @see InetAddress
-    * @see SocketException
-    * @see SecurityException
     * @see TftpPacket
     */
-   public TftpWorker(DatagramPacket req) throws SocketException, SecurityException {
+   public TftpWorker(DatagramPacket req) throws IOException {
       // create packet from req
       TftpPacket request = new TftpPacket(req);
 
       // get type
-      byte type = request.type;
-      filename = new String(request.data);
+      type = request.type;
+      filename = request.data == null ? "" : new String(request.data);
+      options = request.options;
 
-      // create new ds random port
-      dataSocket = new DatagramSocket();
+      // create new socket random port on the transfer loop
+      dataSocket = TftpServer.loop.open(strand, this::Received);
 
       // get client ip and port and worker port
       clientAddress = req.getAddress();
       clientPort = req.getPort();
-      workerPort = dataSocket.getLocalPort();
+      workerPort = dataSocket.socket().getLocalPort();
 
       // if ack send error because not req packet
       // must be req first
       if (type == ACK) {
          System.out.println("ACK found, sending error to client");
          Respond(MakeDataGramPacket(ERROR, new byte[] { (byte) 8 }, clientAddress, clientPort));
-      } else if (type != RRQ) {
+      } else if (type != RRQ && type != WRQ) {
          System.out.println("Invalid request type, dieing...");
          return;
       }
 
    }
 
+   /**
+    * Starts the transfer on the strand of the worker
+    */
+   public void start() {
+      strand.execute(this::Begin);
+   }
+
    /**
     *
-    * Executes the main processing logic for the TFTP worker.
+    * Begins the transfer.
     * 
-    * This method attempts to read the requested file and sends the file data
-    * in blocks to the client. It handles exceptions related to file reading
-    * and responds with appropriate error packets if issues occur.
-    * If the file is successfully read, it breaks the data into blocks
-    * and initiates the process to send these blocks to the client.
+    * This method checks the options of the request then starts sending the
+    * file for a read request or receiving it for a write request. The rest of
+    * the transfer is run by the datagrams and time outs that follow.
     */
-   public void run() {
-      // create array of file data
-      byte[] fileData;
+   private void Begin() {
+      // not a request, nothing to do
+      if (type != RRQ && type != WRQ) {
+         Finish();
+         return;
+      }
 
-      // tries to read file
-      // if not there tell client then returns
-      // any other errors, send error
+      // options the client will be told were accepted
+      Map<String, String> accepted = new LinkedHashMap<String, String>();
+
+      // block size, window size and time out are kept in bounds
       try {
-         fileData = ReadFile(filename);
-      } catch (Exception e) {
-         System.out.println("Error reading file");
-         Respond(MakeDataGramPacket(ERROR, "Error reading file".getBytes(), clientAddress, clientPort));
+         if (options.containsKey("blksize")) {
+            blockSize = Math.max(8, Math.min(MAX_BLOCK_SIZE, Integer.parseInt(options.get("blksize").trim())));
+            accepted.put("blksize", Integer.toString(blockSize));
+         }
+         if (options.containsKey("windowsize")) {
+            windowSize = Math.max(1, Math.min(MAX_WINDOW_SIZE, Integer.parseInt(options.get("windowsize").trim())));
+            accepted.put("windowsize", Integer.toString(windowSize));
+         }
+         if (options.containsKey("timeout")) {
+            int seconds = Math.max(1, Math.min(255, Integer.parseInt(options.get("timeout").trim())));
+            timeout = seconds * 1000;
+            accepted.put("timeout", Integer.toString(seconds));
+         }
+      } catch (NumberFormatException e) {
+         System.out.println("Invalid option");
+         Respond(MakeDataGramPacket(ERROR, "Invalid option".getBytes(), clientAddress, clientPort));
+         Finish();
          return;
       }
 
-      // create list of byte array called blocks
-      List<byte[]> blocks = GetBlocks(fileData);
+      if (type == WRQ) {
+         receiveFile(accepted);
+      } else {
+         sendFile(accepted);
+      }
 
-      sendBlocks(blocks);
+   }
+
+   /**
+    * Handles a datagram that came in on the socket of the worker
+    *
+    * @param packet the datagram
+    */
+   private void Received(DatagramPacket packet) {
+      // ignore anything after the end or not from the client
+      if (finished || packet.getPort() != clientPort || !packet.getAddress().equals(clientAddress)) {
+         return;
+      }
+      if (TftpServer.trace != null) {
+         TftpServer.trace.record(false, workerPort, packet);
+      }
 
+      TftpPacket received = new TftpPacket(packet);
+      if (dallying) {
+         DallyReceived(received);
+      } else if (type == WRQ) {
+         BlockReceived(received);
+      } else {
+         AckReceived(received);
+      }
    }
 
    /**
-    * Sends a packet to the client.
+    * Finds the requested file under the directory the server serves. Absolute
+    * names and names that leave the directory are refused, and so are hidden
+    * files and the hot file index, wherever it is kept, so it can not be
+    * read or overwritten. A refused request is told so with an error packet.
     *
-    * @param p the packet to send to the client
-    * @see DatagramPacket
+    * @return the file, or null if the request was refused
     */
-   private void Respond(DatagramPacket p) {
+   private Path Resolve() {
+      Path path = null;
       try {
-         dataSocket.send(p);
-      } catch (Exception e) {
-         System.out.println("Error sending response");
+         Path requested = Paths.get(filename);
+         if (!filename.isEmpty() && !requested.isAbsolute() && requested.getRoot() == null) {
+            path = TftpServer.root.resolve(requested).normalize();
+         }
+      } catch (InvalidPathException e) {
+         // refused below
+      }
+      if (path != null && (!path.startsWith(TftpServer.root) || path.equals(TftpServer.root))) {
+         path = null;
+      }
+      if (path != null && (path.getFileName().toString().startsWith(".") || TftpServer.hotFiles.isIndexFile(path))) {
+         path = null;
       }
+
+      if (path == null) {
+         System.out.println("Access violation " + filename);
+         Respond(MakeDataGramPacket(ERROR, "Access violation".getBytes(), clientAddress, clientPort));
+      }
+      return path;
    }
 
    /**
-    * 
-    * Sends a list of data blocks to the client and handles acknowledgments.
+    * Stays for two time outs after the last ack of an upload. If that ack was
+    * lost the client sends its last window again after its own time out, and
+    * the ack is resent once for the window rather than the client finding the
+    * worker gone. The wait is on the timing wheel, which ends the transfer.
+    *
+    * @see TimingWheel
+    */
+   private void Dally() {
+      dallying = true;
+      oldBlocks = 0;
+
+      // the client waits the same time out, stay past it
+      TftpServer.timers.schedule(2L * timeout, () -> strand.execute(this::Finish));
+   }
+
+   /**
+    * Handles a datagram from the client while dallying
     *
-    * This method iterates over the provided blocks, sending each block
-    * to the client and waiting for an ack before sending
-    * the next one. If the client does not respond within a specified
-    * timeout, the block is resent up to a maximum of six attempts.
-    * If the last block is sent, the method informs the client and closes
-    * the connection.
+    * @param data the datagram
+    */
+   private void DallyReceived(TftpPacket data) {
+      if (data.type == DATA && oldBlocks++ % windowSize == 0) {
+         Respond(lastAck);
+      }
+   }
+
+   /**
+    * Starts sending the requested file to the client.
+    * 
+    * This method attempts to open the requested file, sends the option ack
+    * if there is one and then the first window of blocks. Blocks are read as
+    * they are needed with the next few read ahead while waiting for acks,
+    * rather than reading the whole file first. It responds with an error
+    * packet if the file can not be opened.
     *
-    * @param blocks the list of byte arrays to send to the client
+    * @param accepted the options accepted so far, tsize and range are added
     */
-   private void sendBlocks(List<byte[]> blocks) {
-      // send each block and wait for a response before sending the next
+   private void sendFile(Map<String, String> accepted) {
+      // tries to open file
+      // if not there tell client then returns
+      // only files under the served directory
+      path = Resolve();
+      if (path == null) {
+         Finish();
+         return;
+      }
 
+      // served from memory if it was warmed up at start
       try {
+         ByteBuffer hot = TftpServer.hotFiles.get(path.toString());
+         if (hot != null) {
+            blocks = new BlockPrefetcher(hot, blockSize);
+         } else {
+            blocks = new BlockPrefetcher(FileChannel.open(path, StandardOpenOption.READ), blockSize);
+         }
+      } catch (Exception e) {
+         System.out.println("Error reading file");
+         Respond(MakeDataGramPacket(ERROR, "Error reading file".getBytes(), clientAddress, clientPort));
+         Finish();
+         return;
+      }
 
-         // loop through the blocks and send each one to the client
-         for (int i = 0; i < blocks.size(); i++) {
-            // set the block number and the block data to send
-            byte blockNumber = (byte) (i + 1);
-            byte[] block = blocks.get(i);
+      // whole file unless a range is asked for, if the last block is full
+      // an empty block is sent after it to mark the end
+      last = blocks.getBlockCount();
+      if (blocks.getSize() % blockSize == 0) {
+         last++;
+      }
 
-            // create the packet to send
-            DatagramPacket packet = MakeDataGramPacket(DATA, blockNumber, block, clientAddress, clientPort);
+      if (options.containsKey("tsize")) {
+         accepted.put("tsize", Long.toString(blocks.getSize()));
+      }
 
-            // send the packet
-            Respond(packet);
+      if (options.containsKey("range")) {
+         // range is first-last, block numbers start at 1
+         String[] range = options.get("range").split("-");
+         try {
+            first = Integer.parseInt(range[0].trim()) - 1;
+            last = Math.min(blocks.getBlockCount(), Integer.parseInt(range[1].trim()));
+         } catch (Exception e) {
+            first = -1;
+         }
+         if (first < 0 || first >= last) {
+            System.out.println("Invalid range " + options.get("range"));
+            Respond(MakeDataGramPacket(ERROR, "Invalid range".getBytes(), clientAddress, clientPort));
+            Finish();
+            return;
+         }
+         accepted.put("range", (first + 1) + "-" + last);
+      }
 
-            // check for last block
-            if (block.length < 512) {
-               System.out.println("Last block sent");
-               return;
-            }
+      // tell client which options were accepted and wait for ack 0
+      if (!accepted.isEmpty()) {
+         DatagramPacket oack = MakeDataGramPacket(OACK, TftpPacket.EncodeOptions(accepted), clientAddress,
+               clientPort);
+         Respond(oack);
+         base = -1;
+         end = 0;
+         resent = false;
+         retransmit = new Retransmit((byte) 0, List.of(oack));
+         return;
+      }
+
+      Started();
+   }
+
+   /**
+    * Starts sending blocks once the options are settled
+    */
+   private void Started() {
+      // count fetches of the file once, not each range of a striped fetch
+      // or a size probe that stops at the option ack
+      if (first == 0) {
+         TftpServer.hotFiles.hit(path.toString());
+      }
+
+      base = first;
+      sendWindow();
+   }
+
+   /**
+    * Starts receiving a file from the client for a write request.
+    *
+    * The blocks are written to a temp file next to the target. If the client
+    * offers tsize the temp file is grown to that size first so it is not
+    * grown a block at a time. The temp file is deleted if the upload fails.
+    *
+    * @param accepted the options accepted so far, tsize is added
+    */
+   private void receiveFile(Map<String, String> accepted) {
+      // only files under the served directory
+      target = Resolve();
+      if (target == null) {
+         Finish();
+         return;
+      }
+      temp = target.resolveSibling(target.getFileName() + ".part-" + workerPort);
 
-            // prepare for the response
-            byte[] ackData = new byte[2];
-            DatagramPacket ackPacket = new DatagramPacket(ackData, 2);
-
-            // set time out to 5 seconds and a counter for re sends
-            int acksTimeOut = 0;
-            dataSocket.setSoTimeout(5000);
-
-            // loop until the client responds or the connection is closed
-            for (;;) {
-
-               try {
-                  // receive the ack packet or throw when the time out is reached
-                  dataSocket.receive(ackPacket);
-                  acksTimeOut = 0;
-                  break;
-               } catch (SocketTimeoutException e) {
-                  // catch time out and resend the block. if I have tried 6 times then close the
-                  // connection
-                  acksTimeOut++;
-                  System.out.println("no response, resending " + blockNumber);
-                  if (acksTimeOut == 6) {
-                     System.out.println("no response, closing conection");
-                     return;
-                  }
-                  Respond(MakeDataGramPacket(DATA, blockNumber, block, clientAddress, clientPort));
-               }
+      // tries to make the temp file
+      try {
+         out = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+      } catch (Exception e) {
+         System.out.println("Error writing file");
+         Respond(MakeDataGramPacket(ERROR, "Error writing file".getBytes(), clientAddress, clientPort));
+         Finish();
+         return;
+      }
+
+      try {
+         if (options.containsKey("tsize")) {
+            long size = Long.parseLong(options.get("tsize").trim());
+            // write the last byte so the file is its full size
+            if (size > 0) {
+               out.write(ByteBuffer.allocate(1), size - 1);
             }
+            accepted.put("tsize", Long.toString(size));
+         }
+      } catch (Exception e) {
+         System.out.println("Error writing file");
+         Respond(MakeDataGramPacket(ERROR, "Error writing file".getBytes(), clientAddress, clientPort));
+         Finish();
+         return;
+      }
+
+      // option ack or ack 0 tells the client to start sending
+      if (accepted.isEmpty()) {
+         lastAck = MakeDataGramPacket(ACK, (byte) 0, new byte[0], clientAddress, clientPort);
+      } else {
+         lastAck = MakeDataGramPacket(OACK, TftpPacket.EncodeOptions(accepted), clientAddress, clientPort);
+      }
+      Respond(lastAck);
+
+      // the last ack sent, resent if the client goes quiet
+      retransmit = new Retransmit((byte) 0, List.of(lastAck));
+   }
+
+   /**
+    * Handles a block of an upload and writes it at its place in the temp
+    * file.
+    *
+    * Blocks are acked at the end of each window. A block from before the
+    * last ack means the ack was lost so it is sent again, a block from after
+    * the next one means one was lost so the last block in order is acked.
+    * Either is sent once for the window, not for each block.
+    * The last ack is resent on the timing wheel if the client goes quiet.
+    * The file is synced every few MB, and once the last block is in it is
+    * synced and renamed over the target before the last ack is sent, so the
+    * client knows the file is safe once it is acked.
+    *
+    * @param data the datagram from the client
+    * @see TimingWheel
+    */
+   private void BlockReceived(TftpPacket data) {
+      // client can end the transfer with an error
+      if (data.type == ERROR) {
+         System.out.println("client ended transfer");
+         Finish();
+         return;
+      }
+      if (data.type != DATA) {
+         return;
+      }
 
-            TftpPacket ackHandled = new TftpPacket(ackPacket);
+      // how far behind the expected block this one is
+      int behind = ((next & 0xff) - (data.blockNumber & 0xff)) & 0xff;
 
-            byte ackType = ackHandled.type;
-            byte blockNumberClient = ackHandled.blockNumber;
+      try {
+         if (behind == 0) {
+            // write block at its place in the file
+            ByteBuffer block = ByteBuffer.wrap(data.data);
+            long position = (long) (next - 1) * blockSize;
+            while (block.hasRemaining()) {
+               position += out.write(block, position);
+            }
+            size += data.data.length;
+            unsynced += data.data.length;
+            next++;
+            sinceAck++;
+            gapAcked = false;
+            oldBlocks = 0;
+
+            // sync every few MB rather than every block
+            if (unsynced >= SYNC_BYTES) {
+               out.force(false);
+               unsynced = 0;
+            }
 
-            if (ackType != ACK) {
-               System.out.println("Invalid ack");
+            retransmit.stop();
+            lastAck = MakeDataGramPacket(ACK, data.blockNumber, new byte[0], clientAddress, clientPort);
+
+            // last block, store the file then ack it
+            if (data.data.length < blockSize) {
+               out.truncate(size);
+               out.force(true);
+               out.close();
+               Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+               stored = true;
+               SyncDirectory(target.getParent());
+               TftpServer.hotFiles.forget(target.toString());
+               Respond(lastAck);
+               System.out.println("stored " + target);
+               Dally();
                return;
             }
-            if (blockNumberClient != blockNumber) {
-               i = blockNumberClient;
+
+            // ack the end of each window
+            if (sinceAck == windowSize) {
+               Respond(lastAck);
+               sinceAck = 0;
+            }
+            retransmit = new Retransmit(data.blockNumber, List.of(lastAck));
+         } else if (behind <= 128 ? oldBlocks++ % windowSize == 0 : !gapAcked) {
+            // old block so our ack was lost, or a block was lost so ack
+            // the last one in order for the client to resend from there.
+            // Once for each window of old blocks and once for each gap.
+            // Before the first block that is ack 0, the client does not
+            // take the option ack again as one
+            if (next == 1) {
+               Respond(MakeDataGramPacket(ACK, (byte) 0, new byte[0], clientAddress, clientPort));
+            } else {
+               Respond(lastAck);
             }
+            sinceAck = 0;
+            gapAcked = gapAcked || behind > 128;
          }
+      } catch (IOException e) {
+         System.out.println("Error writing file");
+         Respond(MakeDataGramPacket(ERROR, "Error writing file".getBytes(), clientAddress, clientPort));
+         Finish();
+      }
+   }
 
-         byte[] finalPacketData = new byte[3];
-         finalPacketData[0] = DATA;
-         finalPacketData[1] = (byte) (blocks.size() + 1);
-         finalPacketData[2] = 0;
+   /**
+    * Syncs a directory so a rename in it is kept if the machine goes down.
+    * Not every system can open a directory, if it can not this does nothing.
+    *
+    * @param dir the directory to sync
+    */
+   private void SyncDirectory(Path dir) {
+      try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+         channel.force(true);
+      } catch (IOException e) {
+         // not supported here
+      }
+   }
 
-         DatagramPacket finalPacket = new DatagramPacket(finalPacketData, 0,
-               finalPacketData.length, clientAddress,
-               clientPort);
+   /**
+    * Sends a packet to the client.
+    *
+    * @param p the packet to send to the client
+    * @see DatagramPacket
+    */
+   private void Respond(DatagramPacket p) {
+      try {
+         if (TftpServer.trace != null) {
+            TftpServer.trace.record(true, workerPort, p);
+         }
+         dataSocket.send(ByteBuffer.wrap(p.getData(), p.getOffset(), p.getLength()), p.getSocketAddress());
+      } catch (Exception e) {
+         System.out.println("Error sending response");
+      }
+   }
 
-         Respond(finalPacket);
+   /**
+    * 
+    * Sends the next window of blocks to the client.
+    *
+    * This method sends a window of blocks from the first block not acked,
+    * then the ack of one of them sends the next window from after the block
+    * that was acked. With the default window size of 1 this is one block at
+    * a time. If the client does not respond within the time out, the window
+    * is resent up to a maximum of six attempts.
+    * The last block is less than the block size, or empty if the file
+    * ends on a full block. The file ends after the ack of the last block and
+    * a range after the ack of its last block.
+    *
+    * @see BlockPrefetcher
+    */
+   private void sendWindow() {
+      try {
+         // send the window of blocks
+         List<DatagramPacket> window = new ArrayList<DatagramPacket>();
+         end = base;
+         lastBlock = false;
+         while (end < last && window.size() < windowSize && !lastBlock) {
+            byte[] block = blocks.get(end);
+            DatagramPacket packet = MakeDataGramPacket(DATA, (byte) (end + 1), block, clientAddress, clientPort);
+            Respond(packet);
+            window.add(packet);
+            lastBlock = block.length < blockSize;
+            end++;
+         }
 
-         System.out.println("all sent");
-         dataSocket.close();
+         // the last block is waited on like any other, if it is lost
+         // the client can only get it again from a resend
+         resent = false;
+         retransmit = new Retransmit((byte) (base + 1), window);
       } catch (Exception e) {
          System.out.println("error with blocks");
+         Finish();
       }
    }
 
    /**
-    * Reads a file from a specified filename and
-    * returns the data as a byte array
+    * Handles an ack from the client of one of the blocks in the window, or
+    * of the option ack. Acks for blocks before the window are old and are
+    * ignored, except the first ack of the block just before it which resends
+    * the window straight away.
     *
-    * @param filename the path to the file to read
-    * @return a byte array containing the data from the file
-    * @throws Exception if there is an error reading the file
-    * @see File
-    * @see FileInputStream
+    * @param ack the datagram from the client
     */
-   private byte[] ReadFile(String filename) {
-      // open the file and read all the data into a byte array and return it
-      try {
+   private void AckReceived(TftpPacket ack) {
+      // client can end the transfer with an error
+      if (ack.type == ERROR) {
+         System.out.println("client ended transfer");
+         Finish();
+         return;
+      }
+      if (ack.type != ACK) {
+         System.out.println("Invalid ack");
+         Finish();
+         return;
+      }
 
-         File file = new File(filename);
-         FileInputStream fis = new FileInputStream(file);
-         byte[] fileData = fis.readAllBytes();
-         fis.close();
-         return fileData;
-      } catch (Exception e) {
+      // find the block in the window the ack is for, newest first
+      for (int i = Math.max(base, end - 1); i >= base; i--) {
+         if (ack.blockNumber == (byte) (i + 1)) {
+            retransmit.stop();
+            Acked(i + 1);
+            return;
+         }
+      }
+
+      // an ack of the block before the window means its first block was
+      // lost, resend the window now rather than after the time out. Only
+      // once, the client acks each old block it gets so one resend can
+      // bring back a whole window of these acks
+      if (base >= 0 && ack.blockNumber == (byte) base && !resent) {
+         retransmit.resend();
+         resent = true;
+      }
+   }
+
+   /**
+    * Moves on after an ack, to the first window after the option ack or the
+    * window after the block acked
+    *
+    * @param acked the block after the one acked
+    */
+   private void Acked(int acked) {
+      // option ack, start the blocks
+      if (base < 0) {
+         Started();
+         return;
+      }
+
+      blocks.acked(acked - base);
+
+      if (lastBlock && acked == end) {
+         System.out.println("Last block sent");
+         Finish();
+         return;
+      }
+      base = acked;
 
-         Respond(MakeDataGramPacket(ERROR, "File note found".getBytes(), clientAddress, clientPort));
-         System.out.println(e.getMessage());
-         return new byte[0];
+      // a range has no end marker, the client knows where it stops
+      if (base >= last) {
+         System.out.println("range sent");
+         Finish();
+         return;
+      }
+      sendWindow();
+   }
 
+   /**
+    * Ends the transfer. Stops the resends, closes the socket and the file,
+    * and deletes the temp file of an upload that was not stored.
+    */
+   private void Finish() {
+      if (finished) {
+         return;
+      }
+      finished = true;
+      if (retransmit != null) {
+         retransmit.stop();
       }
+      TftpServer.loop.close(dataSocket);
 
+      if (blocks != null) {
+         blocks.close();
+      }
+      if (out != null) {
+         try {
+            out.close();
+            if (!stored) {
+               Files.deleteIfExists(temp);
+            }
+         } catch (IOException e) {
+            System.out.println("Error removing " + temp);
+         }
+      }
    }
 
    /**
-    * Splits a byte[] into blocks of 512 bytes each and returns a list of byte
-    * arrays each of size 512 except the last one which may be smaller than or
-    * equal to 512
-    * 
-    * @param data the byte[] to split into blocks
-    * @return a list of byte arrays
+    * Resends a window of packets every time the time out passes until it is
+    * stopped. On the 6th time it gives up and ends the transfer instead.
+    * The time outs are on the server timing wheel and run on the strand of
+    * the worker like its datagrams.
     */
-   private List<byte[]> GetBlocks(byte[] data) {
-      // make a list of byte arrays
-      List<byte[]> blocks = new ArrayList<byte[]>();
+   private class Retransmit implements Runnable {
 
-      int dataLength = data.length;
+      // the first block being waited for
+      private final byte blockNumber;
 
-      // calc the amount of full blocks
-      int amountOfFullBlocks = dataLength / 512;
+      // the packets to resend
+      private final List<DatagramPacket> window;
 
-      // set start and end points for the blocks
-      int startPos = 0;
-      int endPos = 512;
-      byte[] block;
+      // counter for re sends
+      private int acksTimeOut = 0;
 
-      // loop through the data array and copy the range start to end into a new array
-      // if the end position is not within the last block
-      while (endPos / 512 != amountOfFullBlocks + 1) {
-         block = Arrays.copyOfRange(data, startPos, endPos);
-         blocks.add(block);
-         startPos += 512;
-         endPos += 512;
+      // the next resend
+      private TimingWheel.Timeout next;
+
+      // set once the ack came or the wait ended
+      private boolean stopped = false;
+
+      /**
+       * Schedules the first resend
+       *
+       * @param blockNumber the first block being waited for
+       * @param window      the packets to resend
+       */
+      Retransmit(byte blockNumber, List<DatagramPacket> window) {
+         this.blockNumber = blockNumber;
+         this.window = window;
+         Schedule();
+      }
+
+      /**
+       * Runs on the strand when the time out passes without an ack
+       */
+      public void run() {
+         // the ack came just as this was due
+         if (stopped) {
+            return;
+         }
+
+         // resend the window. if I have tried 6 times then close the connection
+         acksTimeOut++;
+         if (acksTimeOut == 6) {
+            System.out.println("no response, closing conection");
+            Finish();
+            return;
+         }
+         System.out.println("no response, resending " + blockNumber);
+         for (DatagramPacket packet : window) {
+            Respond(packet);
+         }
+         Schedule();
       }
 
-      // copy the last block into a new array
-      if (startPos == dataLength) {
-         return blocks;
+      /**
+       * Resends the window now, for when the client asks for it, and starts
+       * the time out again. This does not count as a time out.
+       */
+      void resend() {
+         if (stopped) {
+            return;
+         }
+         next.cancel();
+         for (DatagramPacket packet : window) {
+            Respond(packet);
+         }
+         Schedule();
       }
-      block = Arrays.copyOfRange(data, startPos, dataLength);
-      blocks.add(block);
 
-      return blocks;
+      /**
+       * Stops any more resends
+       */
+      void stop() {
+         stopped = true;
+         next.cancel();
+      }
 
+      // the wheel hands the time out to the strand, it does no work itself
+      private void Schedule() {
+         next = TftpServer.timers.schedule(timeout, () -> strand.execute(this));
+      }
    }
 
    /**
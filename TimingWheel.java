@@ -0,0 +1,175 @@
+// Eli Murray
+// 1626960
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The TimingWheel class runs timeouts for every transfer on one thread.
+ * Time is cut into ticks and the wheel has a ring of slots, a timeout goes in
+ * the slot its deadline tick lands on. Each tick the thread moves to the next
+ * slot and runs the timeouts in it that are due, ones more than a full turn
+ * away are left for a later turn.
+ * Scheduling and cancelling only link or unlink a timeout from its slot so
+ * they take the same time no matter how many timeouts there are.
+ *
+ * @author Eli Murray
+ * @version 1.0
+ * @see TftpWorker
+ */
+public class TimingWheel {
+
+   /**
+    * A scheduled task that can be cancelled
+    */
+   public static class Timeout {
+
+      // the wheel the timeout is in
+      private final TimingWheel wheel;
+
+      // what to run when due
+      private final Runnable task;
+
+      // the tick the timeout is due on
+      private final long deadline;
+
+      // neighbours in the slot, null if not in a slot
+      private Timeout prev;
+      private Timeout next;
+
+      private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+         this.wheel = wheel;
+         this.task = task;
+         this.deadline = deadline;
+      }
+
+      /**
+       * Stops the timeout from running
+       *
+       * @return true if it was stopped, false if it already ran or was cancelled
+       */
+      public boolean cancel() {
+         synchronized (wheel) {
+            if (prev == null) {
+               return false;
+            }
+            unlink();
+            return true;
+         }
+      }
+
+      // remove from the slot it is in
+      private void unlink() {
+         prev.next = next;
+         if (next != null) {
+            next.prev = prev;
+         }
+         prev = null;
+         next = null;
+      }
+   }
+
+   // length of a tick in millis
+   private final long tickMillis;
+
+   // head of each slot, the heads are never due
+   private final Timeout[] slots;
+
+   // slots - 1, slots is a power of two
+   private final int mask;
+
+   // the last tick that has been run
+   private long tick = 0;
+
+   /**
+    * Creates a wheel and starts its thread
+    *
+    * @param tickMillis the length of a tick in millis
+    * @param slots      the amount of slots, rounded up to a power of two
+    */
+   public TimingWheel(long tickMillis, int slots) {
+      int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+      this.tickMillis = tickMillis;
+      this.slots = new Timeout[size];
+      this.mask = size - 1;
+      for (int i = 0; i < size; i++) {
+         this.slots[i] = new Timeout(this, null, Long.MAX_VALUE);
+      }
+
+      Thread ticker = new Thread(this::run, "tftp-timer");
+      ticker.setDaemon(true);
+      ticker.start();
+   }
+
+   /**
+    * Schedules a task to run after a delay. The delay is counted in whole
+    * ticks so it can run up to a tick early or late.
+    *
+    * @param delayMillis how long to wait in millis
+    * @param task        what to run, this runs on the wheel thread so it
+    *                    should be short
+    * @return the timeout so it can be cancelled
+    */
+   public synchronized Timeout schedule(long delayMillis, Runnable task) {
+      long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+      Timeout t = new Timeout(this, task, tick + ticks);
+
+      // link in after the head of its slot
+      Timeout head = slots[(int) (t.deadline & mask)];
+      t.prev = head;
+      t.next = head.next;
+      if (head.next != null) {
+         head.next.prev = t;
+      }
+      head.next = t;
+      return t;
+   }
+
+   /**
+    * Moves the wheel on a tick at a time, catching up if it fell behind, and
+    * runs the timeouts that are due.
+    */
+   private void run() {
+      long start = System.nanoTime();
+      List<Timeout> due = new ArrayList<Timeout>();
+
+      for (;;) {
+         // sleep until the next tick
+         long wait = tickMillis - ((System.nanoTime() - start) / 1000000 - tick * tickMillis);
+         if (wait > 0) {
+            try {
+               Thread.sleep(wait);
+            } catch (InterruptedException e) {
+               return;
+            }
+         }
+
+         // take the due timeouts out of each slot passed
+         synchronized (this) {
+            long now = (System.nanoTime() - start) / 1000000 / tickMillis;
+            while (tick < now) {
+               tick++;
+               Timeout t = slots[(int) (tick & mask)].next;
+               while (t != null) {
+                  Timeout next = t.next;
+                  if (t.deadline <= tick) {
+                     t.unlink();
+                     due.add(t);
+                  }
+                  t = next;
+               }
+            }
+         }
+
+         // run them outside the lock so they can schedule more
+         for (Timeout t : due) {
+            try {
+               t.task.run();
+            } catch (Exception e) {
+               System.out.println("error in timeout: " + e);
+            }
+         }
+         due.clear();
+      }
+   }
+}
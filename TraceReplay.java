@@ -0,0 +1,528 @@
+// Eli Murray
+// 1626960
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The TraceReplay class plays the client side of a recorded trace against a
+ * server and reports how long each transfer took compared to the recording.
+ *
+ * The trace can be from a client or from the server. The datagrams the client
+ * sent are sent again with the same contents, so acks that were lost or came
+ * late in the recording are lost or late again. Each datagram waits for the
+ * server datagram it followed in the recording, then for the same gap after
+ * it, divided by the speed. Transfers start at the same offsets as in the
+ * recording, also divided by the speed, and run at the same time. The time
+ * outs of the server are not sped up, so a transfer with resends can not be
+ * played faster than them.
+ *
+ * A client trace holds what the client sent, including datagrams lost on the
+ * way, the server trace holds only what reached the server so it plays the
+ * recorded losses back more closely.
+ *
+ * Server datagrams are received on a thread of their own and the gaps
+ * before each send are kept to well under a millisecond, so the deltas come
+ * from the server and not from the replay.
+ *
+ * Data packets are traced without their contents so an upload played back
+ * stores zeros. Uploads are skipped unless -u is given, then they are stored
+ * under the recorded name with ".replay" added so no served file is
+ * overwritten.
+ *
+ * Usage: java TraceReplay [-u] <traceFile> <server> <port> [speed]
+ *
+ * @author Eli Murray
+ * @version 1.0
+ * @see PacketTrace
+ */
+public class TraceReplay {
+
+   // nanos to wait past the recorded gap for a server datagram that is not coming
+   private static final long GRACE = 5_000_000_000L;
+
+   // nanos to wait for the rest of the server datagrams after the last one sent
+   private static final long IDLE = 2_000_000_000L;
+
+   // nanos before a send that are spun rather than parked
+   private static final long SPIN = 200_000L;
+
+   // nanos to spin waiting for a server datagram before blocking
+   private static final long AWAIT_SPIN = 1_000_000L;
+
+   // spinning on a single core only holds up the receiver and the server
+   private static final boolean CAN_SPIN = Runtime.getRuntime().availableProcessors() > 1;
+
+   // added to the name of a played upload
+   private static final String SCRATCH = ".replay";
+
+   /**
+    * The recorded datagrams of one transfer
+    */
+   private static class Transfer {
+
+      // the file asked for, or the key if the request was not recorded
+      String filename;
+
+      // how the transfer was told apart in the trace
+      final String key;
+
+      // true if it was a write request
+      boolean upload = false;
+
+      // datagrams in the order they were made, true in client if the client sent it
+      final List<PacketTrace.Record> records = new ArrayList<PacketTrace.Record>();
+      final List<Boolean> client = new ArrayList<Boolean>();
+
+      Transfer(String key) {
+         this.key = key;
+         this.filename = key;
+      }
+
+      long first() {
+         return records.get(0).time;
+      }
+
+      long last() {
+         return records.get(records.size() - 1).time;
+      }
+
+      int serverPackets() {
+         int count = 0;
+         for (boolean fromClient : client) {
+            if (!fromClient) {
+               count++;
+            }
+         }
+         return count;
+      }
+   }
+
+   /**
+    * How one transfer went when played back
+    */
+   public static class Result {
+
+      /**
+       * the file of the transfer
+       */
+      public final String filename;
+
+      /**
+       * nanos from the first to the last datagram in the recording
+       */
+      public final long recorded;
+
+      /**
+       * nanos from the first to the last datagram played back
+       */
+      public final long replayed;
+
+      /**
+       * server datagrams in the recording
+       */
+      public final int recordedPackets;
+
+      /**
+       * server datagrams received played back
+       */
+      public final int replayedPackets;
+
+      Result(String filename, long recorded, long replayed, int recordedPackets, int replayedPackets) {
+         this.filename = filename;
+         this.recorded = recorded;
+         this.replayed = replayed;
+         this.recordedPackets = recordedPackets;
+         this.replayedPackets = replayedPackets;
+      }
+
+      /**
+       * Returns the transfer as one line of the report
+       *
+       * @return the file, both times, the change and the server datagrams
+       */
+      public String toString() {
+         return String.format("%-24s %10.1f %10.1f %+10.1f %7d/%d", filename, recorded / 1e6, replayed / 1e6,
+               (replayed - recorded) / 1e6, replayedPackets, recordedPackets);
+      }
+   }
+
+   // the server to play against
+   private final InetSocketAddress server;
+
+   // how many times faster than the recording to play
+   private final double speed;
+
+   // true to play uploads, stored under a scratch name
+   private final boolean uploads;
+
+   /**
+    * Creates a replay against a server
+    *
+    * @param server  the address and port of the server
+    * @param speed   how many times faster than the recording to play, 1 for
+    *                the recorded speed
+    * @param uploads true to play uploads, stored under the recorded name with
+    *                ".replay" added, false to skip them
+    */
+   public TraceReplay(InetSocketAddress server, double speed, boolean uploads) {
+      if (!(speed > 0)) {
+         throw new IllegalArgumentException("speed must be more than 0");
+      }
+      this.server = server;
+      this.speed = speed;
+      this.uploads = uploads;
+   }
+
+   /**
+    * Plays back every transfer in a trace, uploads only if they were asked
+    * for
+    *
+    * @param records the records of the trace
+    * @param role    who made the trace, PacketTrace.CLIENT or SERVER
+    * @return how each transfer went, in the order they started
+    * @throws IOException if a transfer can not be played
+    */
+   public List<Result> replay(List<PacketTrace.Record> records, byte role) throws IOException {
+      List<Transfer> transfers = Split(records, role);
+      if (!uploads && transfers.removeIf(t -> t.upload)) {
+         System.out.println("Skipping uploads, -u stores them as <name>" + SCRATCH);
+      }
+      if (transfers.isEmpty()) {
+         return new ArrayList<Result>();
+      }
+
+      ExecutorService pool = Executors.newFixedThreadPool(transfers.size());
+      try {
+         long traceStart = transfers.get(0).first();
+         long start = System.nanoTime();
+
+         List<Future<Result>> running = new ArrayList<Future<Result>>();
+         for (Transfer t : transfers) {
+            long startAt = start + Scale(t.first() - traceStart);
+            running.add(pool.submit(() -> Play(t, startAt)));
+         }
+
+         List<Result> results = new ArrayList<Result>();
+         for (Future<Result> f : running) {
+            try {
+               results.add(f.get());
+            } catch (Exception e) {
+               Throwable cause = e.getCause() == null ? e : e.getCause();
+               throw new IOException("replay failed: " + cause.getMessage(), cause);
+            }
+         }
+         return results;
+      } finally {
+         pool.shutdownNow();
+      }
+   }
+
+   /**
+    * Splits a trace into its transfers. A client trace has a socket for
+    * each transfer, the server trace has a client address and port.
+    *
+    * @param records the records of the trace
+    * @param role    who made the trace
+    * @return the transfers in the order they started
+    */
+   private static List<Transfer> Split(List<PacketTrace.Record> records, byte role) {
+      Map<String, Transfer> transfers = new LinkedHashMap<String, Transfer>();
+      for (PacketTrace.Record r : records) {
+         boolean fromClient = role == PacketTrace.CLIENT ? r.sent : !r.sent;
+         String key = role == PacketTrace.CLIENT ? "port " + r.localPort
+               : r.remote.getAddress().getHostAddress() + ":" + r.remote.getPort();
+
+         Transfer t = transfers.get(key);
+         if (t == null) {
+            // a transfer starts with the client asking
+            if (!fromClient) {
+               continue;
+            }
+            t = new Transfer(key);
+            if (r.data.length > 0 && (r.data[0] == TftpPacket.RRQ || r.data[0] == TftpPacket.WRQ)) {
+               TftpPacket request = new TftpPacket(new DatagramPacket(r.data, r.data.length));
+               t.filename = new String(request.data);
+               t.upload = request.type == TftpPacket.WRQ;
+               if (t.upload) {
+                  t.filename += SCRATCH;
+               }
+            }
+            transfers.put(key, t);
+         }
+         t.records.add(r);
+         t.client.add(fromClient);
+      }
+      return new ArrayList<Transfer>(transfers.values());
+   }
+
+   /**
+    * Plays the client side of one transfer
+    *
+    * @param t       the transfer
+    * @param startAt nanoTime to send the first datagram at
+    * @return how the transfer went
+    * @throws IOException if the socket fails
+    */
+   private Result Play(Transfer t, long startAt) throws IOException {
+      try (DatagramSocket ds = new DatagramSocket()) {
+         Replaying state = new Replaying(ds);
+         Thread receiver = new Thread(state, "replay-receive");
+         receiver.setDaemon(true);
+         receiver.start();
+
+         Pause(startAt);
+         long begin = System.nanoTime();
+         long end = begin;
+
+         // server datagrams seen so far in the recording and when the last was
+         int seen = 0;
+         long lastServer = t.first();
+
+         for (int i = 0; i < t.records.size(); i++) {
+            PacketTrace.Record r = t.records.get(i);
+            if (!t.client.get(i)) {
+               seen++;
+               lastServer = r.time;
+               continue;
+            }
+
+            // wait for the server datagram this one followed, then the same gap
+            long sendAt = begin + Scale(r.time - t.first());
+            if (seen > 0) {
+               long after = state.Await(seen, System.nanoTime() + Scale(r.time - lastServer) + GRACE);
+               sendAt = (after != 0 ? after : System.nanoTime()) + Scale(r.time - lastServer);
+            }
+            Pause(sendAt);
+
+            // the request goes to the server, an upload under its scratch
+            // name, the rest to the worker it made
+            byte[] data = i == 0 && t.upload ? Scratch(r.data) : r.data;
+            InetSocketAddress to = i == 0 ? server : state.worker;
+            if (to != null) {
+               ds.send(new DatagramPacket(data, data.length, to));
+               end = System.nanoTime();
+            }
+         }
+
+         // take the rest of what the server sends
+         state.Await(seen, System.nanoTime() + IDLE);
+         int count = state.Count();
+         if (count > 0) {
+            end = Math.max(end, state.Arrival(count - 1));
+         }
+
+         return new Result(t.filename, t.last() - t.first(), end - begin, t.serverPackets(), count);
+      }
+   }
+
+   /**
+    * Adds the scratch ending to the filename of a write request, keeping its
+    * options
+    *
+    * @param request the recorded write request
+    * @return the request for the scratch file
+    */
+   private static byte[] Scratch(byte[] request) {
+      int end = 1;
+      while (end < request.length && request[end] != 0) {
+         end++;
+      }
+      byte[] scratch = SCRATCH.getBytes();
+      byte[] renamed = new byte[request.length + scratch.length];
+      System.arraycopy(request, 0, renamed, 0, end);
+      System.arraycopy(scratch, 0, renamed, end, scratch.length);
+      System.arraycopy(request, end, renamed, end + scratch.length, request.length - end);
+      return renamed;
+   }
+
+   /**
+    * Divides a recorded gap by the speed
+    *
+    * @param nanos the gap in the recording
+    * @return the gap to wait played back
+    */
+   private long Scale(long nanos) {
+      return (long) (nanos / speed);
+   }
+
+   /**
+    * Waits until a time. Most of the wait is parked, the last part is spun
+    * on a machine with more than one core so gaps well under a millisecond
+    * are kept.
+    *
+    * @param until nanoTime to wait until
+    */
+   private static void Pause(long until) {
+      for (long left = until - System.nanoTime(); left > 0; left = until - System.nanoTime()) {
+         if (left > SPIN || !CAN_SPIN) {
+            LockSupport.parkNanos(CAN_SPIN ? left - SPIN : left);
+         } else {
+            Thread.onSpinWait();
+         }
+      }
+   }
+
+   /**
+    * Receives what the server sends to one played transfer on its own thread
+    * and notes when each datagram arrived, until the socket is closed
+    */
+   private class Replaying implements Runnable {
+
+      // the socket of the transfer
+      private final DatagramSocket ds;
+
+      // nanoTime each server datagram arrived
+      private final List<Long> arrived = new ArrayList<Long>();
+
+      // size of arrived, read without the lock while spinning
+      private volatile int received = 0;
+
+      // where the worker sends from, null until it has sent something
+      volatile InetSocketAddress worker = null;
+
+      Replaying(DatagramSocket ds) {
+         this.ds = ds;
+      }
+
+      public void run() {
+         InetAddress serverAddress = server.getAddress();
+         byte[] buffer = new byte[1472];
+         DatagramPacket p = new DatagramPacket(buffer, buffer.length);
+         try {
+            for (;;) {
+               p.setLength(buffer.length);
+               ds.receive(p);
+               long now = System.nanoTime();
+               if (!p.getAddress().equals(serverAddress)) {
+                  continue;
+               }
+               if (worker == null) {
+                  worker = new InetSocketAddress(p.getAddress(), p.getPort());
+               }
+               synchronized (this) {
+                  arrived.add(now);
+                  received = arrived.size();
+                  notifyAll();
+               }
+            }
+         } catch (IOException e) {
+            // socket closed, the transfer is over
+         }
+      }
+
+      /**
+       * Waits until an amount of server datagrams have arrived or a time is
+       * reached. With more than one core it spins for a short while first, a
+       * reply usually comes sooner than a blocked thread can be woken.
+       *
+       * @param count the amount of datagrams to wait for
+       * @param until nanoTime to stop at
+       * @return when the last of them arrived, 0 if they did not all arrive
+       */
+      long Await(int count, long until) {
+         if (count <= 0) {
+            return 0;
+         }
+         long spinUntil = Math.min(until, System.nanoTime() + AWAIT_SPIN);
+         while (CAN_SPIN && received < count && System.nanoTime() < spinUntil) {
+            Thread.onSpinWait();
+         }
+
+         synchronized (this) {
+            while (arrived.size() < count) {
+               long left = until - System.nanoTime();
+               if (left <= 0) {
+                  return 0;
+               }
+               try {
+                  wait(left / 1_000_000, (int) (left % 1_000_000));
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  return 0;
+               }
+            }
+            return arrived.get(count - 1);
+         }
+      }
+
+      /**
+       * Returns how many server datagrams have arrived
+       *
+       * @return the amount of datagrams
+       */
+      synchronized int Count() {
+         return arrived.size();
+      }
+
+      /**
+       * Returns when a server datagram arrived
+       *
+       * @param index the datagram starting from 0
+       * @return its nanoTime
+       */
+      synchronized long Arrival(int index) {
+         return arrived.get(index);
+      }
+   }
+
+   /**
+    * Plays a trace against a server and prints how each transfer went.
+    *
+    * @param args -u to play uploads, the trace file, server address, port
+    *             and optionally the speed
+    */
+   public static void main(String[] args) {
+      boolean uploads = args.length > 0 && args[0].equals("-u");
+      if (uploads) {
+         args = Arrays.copyOfRange(args, 1, args.length);
+      }
+      if (args.length < 3 || args.length > 4) {
+         System.err.println("Usage: java TraceReplay [-u] <traceFile> <server> <port> [speed]");
+         return;
+      }
+
+      try {
+         InetSocketAddress server = new InetSocketAddress(InetAddress.getByName(args[1]),
+               Integer.parseInt(args[2]));
+         double speed = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+
+         byte[] role = new byte[1];
+         List<PacketTrace.Record> records = PacketTrace.read(Paths.get(args[0]), role);
+         System.out.println("Replaying " + records.size() + " datagrams from a "
+               + (role[0] == PacketTrace.CLIENT ? "client" : "server") + " trace at " + speed + "x");
+
+         List<Result> results = new TraceReplay(server, speed, uploads).replay(records, role[0]);
+
+         // times in millis, the recorded ones are divided by the speed to compare
+         System.out.println(String.format("%-24s %10s %10s %10s %9s", "file", "recorded", "replayed", "delta",
+               "packets"));
+         long recorded = 0;
+         long replayed = 0;
+         for (Result r : results) {
+            Result scaled = new Result(r.filename, (long) (r.recorded / speed), r.replayed, r.recordedPackets,
+                  r.replayedPackets);
+            System.out.println(scaled);
+            recorded += scaled.recorded;
+            replayed += scaled.replayed;
+         }
+         System.out.println(String.format("%-24s %10.1f %10.1f %+10.1f", results.size() + " transfers",
+               recorded / 1e6, replayed / 1e6, (replayed - recorded) / 1e6));
+      } catch (Exception e) {
+         System.err.println("Exception: " + e.getMessage());
+      }
+   }
+}
@@ -0,0 +1,233 @@
+// Eli Murray
+// 1626960
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The TransferLoop class receives the datagrams of every transfer on one
+ * thread and runs the transfers on a small shared pool, so a transfer that
+ * is waiting for a datagram or a time out holds no thread of its own.
+ *
+ * Each transfer has a non blocking socket registered with one selector. The
+ * loop thread takes each datagram that arrives and hands it to its transfer.
+ * A transfer runs its datagrams and time outs one at a time, in the order
+ * they came, on a Strand over the pool, so its state needs no locks. Time
+ * outs come from the timing wheel and are run on the same strand.
+ *
+ * @author Eli Murray
+ * @version 1.0
+ * @see TftpWorker
+ * @see TimingWheel
+ */
+public class TransferLoop {
+
+   // biggest datagram a transfer is sent
+   private static final int MAX_DATAGRAM = 1472;
+
+   /**
+    * Runs tasks one at a time in the order they were given, on the pool of
+    * the loop. Tasks of different strands run at the same time.
+    */
+   public class Strand implements Executor {
+
+      // tasks not run yet
+      private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+      // set while a pool thread is running the tasks
+      private final AtomicBoolean running = new AtomicBoolean();
+
+      private Strand() {
+      }
+
+      /**
+       * Runs a task after the ones already given
+       *
+       * @param task the task to run
+       */
+      public void execute(Runnable task) {
+         tasks.add(task);
+         if (running.compareAndSet(false, true)) {
+            pool.execute(this::Drain);
+         }
+      }
+
+      /**
+       * Runs tasks until there are none, on a pool thread
+       */
+      private void Drain() {
+         for (;;) {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+               try {
+                  task.run();
+               } catch (Exception e) {
+                  System.out.println("error in transfer: " + e);
+               }
+            }
+
+            // a task given just as this stopped is run here or by a new drain
+            running.set(false);
+            if (tasks.isEmpty() || !running.compareAndSet(false, true)) {
+               return;
+            }
+         }
+      }
+   }
+
+   // sockets of every transfer
+   private final Selector selector;
+
+   // runs the strands
+   private final ExecutorService pool;
+
+   // sockets to register on the loop thread
+   private final Queue<Runnable> registrations = new ConcurrentLinkedQueue<Runnable>();
+
+   /**
+    * Creates a loop and starts its thread
+    *
+    * @param threads the amount of pool threads to run transfers on
+    * @throws IOException if the selector can not be opened
+    */
+   public TransferLoop(int threads) throws IOException {
+      selector = Selector.open();
+
+      AtomicInteger count = new AtomicInteger();
+      pool = Executors.newFixedThreadPool(threads, r -> {
+         Thread t = new Thread(r, "tftp-transfer-" + count.incrementAndGet());
+         t.setDaemon(true);
+         return t;
+      });
+
+      Thread loop = new Thread(this::run, "tftp-loop");
+      loop.setDaemon(true);
+      loop.start();
+   }
+
+   /**
+    * Makes a strand to run the tasks of one transfer
+    *
+    * @return the strand
+    */
+   public Strand strand() {
+      return new Strand();
+   }
+
+   /**
+    * Opens a socket on any port for a transfer. Each datagram it receives is
+    * given to the receiver on the strand. Closing the socket takes it off the
+    * loop.
+    *
+    * @param strand   the strand of the transfer
+    * @param receiver what to do with each datagram
+    * @return the socket, open and not blocking
+    * @throws IOException if the socket can not be opened
+    */
+   public DatagramChannel open(Strand strand, Consumer<DatagramPacket> receiver) throws IOException {
+      DatagramChannel channel = DatagramChannel.open();
+      try {
+         channel.bind(new InetSocketAddress(0));
+         channel.configureBlocking(false);
+      } catch (IOException e) {
+         channel.close();
+         throw e;
+      }
+
+      // each datagram is run on the strand, not on the loop thread
+      Consumer<DatagramPacket> deliver = p -> strand.execute(() -> receiver.accept(p));
+
+      // registered on the loop thread so it is never held up by a select
+      registrations.add(() -> {
+         try {
+            channel.register(selector, SelectionKey.OP_READ, deliver);
+         } catch (ClosedChannelException e) {
+            // closed before it was registered
+         }
+      });
+      selector.wakeup();
+      return channel;
+   }
+
+   /**
+    * Closes the socket of a transfer and takes it off the loop. The loop is
+    * woken so the port is given back now rather than at the next datagram.
+    *
+    * @param channel the socket to close
+    */
+   public void close(DatagramChannel channel) {
+      try {
+         channel.close();
+      } catch (IOException e) {
+         // closed anyway
+      }
+      selector.wakeup();
+   }
+
+   /**
+    * Waits for datagrams on every socket and hands each to the strand of its
+    * transfer
+    */
+   private void run() {
+      ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+      for (;;) {
+         try {
+            selector.select();
+
+            Runnable registration;
+            while ((registration = registrations.poll()) != null) {
+               registration.run();
+            }
+
+            for (SelectionKey key : selector.selectedKeys()) {
+               Receive(key, buffer);
+            }
+            selector.selectedKeys().clear();
+         } catch (IOException e) {
+            System.out.println("error in transfer loop: " + e);
+         }
+      }
+   }
+
+   /**
+    * Takes every datagram waiting on one socket
+    *
+    * @param key    the key of the socket
+    * @param buffer a buffer to receive into
+    */
+   @SuppressWarnings("unchecked")
+   private void Receive(SelectionKey key, ByteBuffer buffer) {
+      DatagramChannel channel = (DatagramChannel) key.channel();
+      Consumer<DatagramPacket> deliver = (Consumer<DatagramPacket>) key.attachment();
+
+      try {
+         for (;;) {
+            buffer.clear();
+            InetSocketAddress from = (InetSocketAddress) channel.receive(buffer);
+            if (from == null) {
+               return;
+            }
+            byte[] data = Arrays.copyOf(buffer.array(), buffer.position());
+            deliver.accept(new DatagramPacket(data, data.length, from));
+         }
+      } catch (IOException e) {
+         // closed by its transfer
+         key.cancel();
+      }
+   }
+}
@@ -0,0 +1,165 @@
+// Eli Murray
+// 1626960
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Options for one transfer. Each setter returns the options so they can be
+ * chained. Options left at their defaults are not sent to the server.
+ *
+ * @author Eli Murray
+ * @version 1.0
+ * @see TftpClient
+ */
+public class TransferOptions {
+
+   // size of each block
+   private int blockSize = 512;
+
+   // blocks the server sends before waiting for an ack
+   private int windowSize = 1;
+
+   // seconds to wait for a packet before trying again
+   private int timeout = 5;
+
+   // time outs in a row before giving up
+   private int retries = 6;
+
+   // where to record the datagrams, null for none
+   private PacketTrace trace = null;
+
+   /**
+    * Sets the size of each block, 8 to 1468
+    *
+    * @param blockSize the size of each block
+    * @return these options
+    */
+   public TransferOptions blockSize(int blockSize) {
+      if (blockSize < 8 || blockSize > 1468) {
+         throw new IllegalArgumentException("block size must be 8 to 1468");
+      }
+      this.blockSize = blockSize;
+      return this;
+   }
+
+   /**
+    * Sets how many blocks the server sends before waiting for an ack, 1 to 64
+    *
+    * @param windowSize the amount of blocks
+    * @return these options
+    */
+   public TransferOptions windowSize(int windowSize) {
+      if (windowSize < 1 || windowSize > 64) {
+         throw new IllegalArgumentException("window size must be 1 to 64");
+      }
+      this.windowSize = windowSize;
+      return this;
+   }
+
+   /**
+    * Sets how long to wait for a packet before trying again, 1 to 255
+    * seconds. The server uses the same time out before resending.
+    *
+    * @param timeout the time out in seconds
+    * @return these options
+    */
+   public TransferOptions timeout(int timeout) {
+      if (timeout < 1 || timeout > 255) {
+         throw new IllegalArgumentException("timeout must be 1 to 255 seconds");
+      }
+      this.timeout = timeout;
+      return this;
+   }
+
+   /**
+    * Sets how many time outs in a row there can be before giving up
+    *
+    * @param retries the amount of time outs
+    * @return these options
+    */
+   public TransferOptions retries(int retries) {
+      if (retries < 1) {
+         throw new IllegalArgumentException("retries must be at least 1");
+      }
+      this.retries = retries;
+      return this;
+   }
+
+   /**
+    * Sets a trace to record every datagram of the transfer in
+    *
+    * @param trace the trace, null to stop recording
+    * @return these options
+    * @see PacketTrace
+    */
+   public TransferOptions trace(PacketTrace trace) {
+      this.trace = trace;
+      return this;
+   }
+
+   /**
+    * Returns the size of each block
+    *
+    * @return the size of each block
+    */
+   public int getBlockSize() {
+      return blockSize;
+   }
+
+   /**
+    * Returns how many blocks the server sends before waiting for an ack
+    *
+    * @return the window size
+    */
+   public int getWindowSize() {
+      return windowSize;
+   }
+
+   /**
+    * Returns how long to wait for a packet before trying again
+    *
+    * @return the time out in seconds
+    */
+   public int getTimeout() {
+      return timeout;
+   }
+
+   /**
+    * Returns how many time outs in a row there can be before giving up
+    *
+    * @return the amount of time outs
+    */
+   public int getRetries() {
+      return retries;
+   }
+
+   /**
+    * Returns the trace datagrams are recorded in
+    *
+    * @return the trace, null if not recording
+    */
+   public PacketTrace getTrace() {
+      return trace;
+   }
+
+   /**
+    * Returns the options to send in a request, only the ones not at their
+    * defaults
+    *
+    * @return the options by name
+    */
+   public Map<String, String> toRequestOptions() {
+      Map<String, String> options = new LinkedHashMap<String, String>();
+      if (blockSize != 512) {
+         options.put("blksize", Integer.toString(blockSize));
+      }
+      if (windowSize != 1) {
+         options.put("windowsize", Integer.toString(windowSize));
+      }
+      if (timeout != 5) {
+         options.put("timeout", Integer.toString(timeout));
+      }
+      return options;
+   }
+}
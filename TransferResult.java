@@ -0,0 +1,86 @@
+// Eli Murray
+// 1626960
+
+/**
+ * What happened in a finished transfer.
+ *
+ * @author Eli Murray
+ * @version 1.0
+ * @see TftpClient
+ */
+public class TransferResult {
+
+   // the file that was fetched
+   private final String filename;
+
+   // bytes in the file
+   private final long bytes;
+
+   // time outs waited through
+   private final long retries;
+
+   // how long it took in nanos
+   private final long elapsedNanos;
+
+   /**
+    * Creates a result
+    *
+    * @param filename     the file that was fetched
+    * @param bytes        bytes in the file
+    * @param retries      time outs waited through
+    * @param elapsedNanos how long it took in nanos
+    */
+   public TransferResult(String filename, long bytes, long retries, long elapsedNanos) {
+      this.filename = filename;
+      this.bytes = bytes;
+      this.retries = retries;
+      this.elapsedNanos = elapsedNanos;
+   }
+
+   /**
+    * Returns the file that was fetched
+    *
+    * @return the filename
+    */
+   public String getFilename() {
+      return filename;
+   }
+
+   /**
+    * Returns the size of the file
+    *
+    * @return bytes in the file
+    */
+   public long getBytes() {
+      return bytes;
+   }
+
+   /**
+    * Returns how many time outs were waited through
+    *
+    * @return the amount of time outs
+    */
+   public long getRetries() {
+      return retries;
+   }
+
+   /**
+    * Returns how long the transfer took
+    *
+    * @return the time in nanos
+    */
+   public long getElapsedNanos() {
+      return elapsedNanos;
+   }
+
+   /**
+    * Returns the result as one line
+    *
+    * @return the result as a string
+    */
+   public String toString() {
+      long millis = Math.max(1, elapsedNanos / 1000000);
+      return filename + ": " + bytes + " bytes in " + millis + "ms (" + (bytes / millis) + " KB/s), "
+            + retries + " retries";
+   }
+}
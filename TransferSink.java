@@ -0,0 +1,143 @@
+// Eli Murray
+// 1626960
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Where the blocks of a fetched file go.
+ * Each block is written with its position in the file. A single server sends
+ * blocks in order but a striped download writes ranges from several servers
+ * at once, so sinks that can only be written in order say so and are not
+ * used for striped downloads.
+ *
+ * @author Eli Murray
+ * @version 1.0
+ * @see TftpClient
+ */
+public interface TransferSink {
+
+   /**
+    * Writes a block at its position in the file. May be called from several
+    * threads at once if the sink is positional.
+    *
+    * @param position where the block goes in the file
+    * @param data     the data of the block
+    * @throws IOException if the block can not be written
+    */
+   void write(long position, ByteBuffer data) throws IOException;
+
+   /**
+    * Called with the size of the file when the server tells it, before any
+    * blocks are written
+    *
+    * @param size the size of the file in bytes
+    * @throws IOException if the sink can not hold a file of that size
+    */
+   default void size(long size) throws IOException {
+   }
+
+   /**
+    * Returns whether blocks can be written in any order
+    *
+    * @return true if blocks can be written in any order
+    */
+   default boolean isPositional() {
+      return true;
+   }
+
+   /**
+    * Called once the transfer has ended, whether it worked or not
+    *
+    * @throws IOException if the sink can not be closed
+    */
+   default void close() throws IOException {
+   }
+
+   /**
+    * Returns a sink that writes to a file, replacing it if it is there
+    *
+    * @param path the file to write
+    * @return the sink
+    * @throws IOException if the file can not be opened
+    */
+   static TransferSink file(Path path) throws IOException {
+      FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+      return new TransferSink() {
+         public void write(long position, ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+               position += channel.write(data, position);
+            }
+         }
+
+         public void close() throws IOException {
+            channel.close();
+         }
+      };
+   }
+
+   /**
+    * Returns a sink that writes into a buffer from its start. The buffer
+    * position is not moved.
+    *
+    * @param buffer the buffer to write into
+    * @return the sink
+    */
+   static TransferSink buffer(ByteBuffer buffer) {
+      return new TransferSink() {
+         public void write(long position, ByteBuffer data) throws IOException {
+            if (position + data.remaining() > buffer.capacity()) {
+               throw new IOException("buffer too small");
+            }
+            // duplicate so threads do not share a position
+            ByteBuffer target = buffer.duplicate();
+            target.limit(target.capacity());
+            target.position((int) position);
+            target.put(data);
+         }
+
+         public void size(long size) throws IOException {
+            if (size > buffer.capacity()) {
+               throw new IOException("buffer too small for " + size + " bytes");
+            }
+         }
+      };
+   }
+
+   /**
+    * Returns a sink that writes to a stream. Blocks must come in order so it
+    * can not be used for striped downloads. The stream is not closed.
+    *
+    * @param stream the stream to write to
+    * @return the sink
+    */
+   static TransferSink stream(OutputStream stream) {
+      return new TransferSink() {
+         // bytes written so far
+         private long written = 0;
+
+         public synchronized void write(long position, ByteBuffer data) throws IOException {
+            if (position != written) {
+               throw new IOException("stream sink needs blocks in order");
+            }
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            stream.write(bytes);
+            written += bytes.length;
+         }
+
+         public boolean isPositional() {
+            return false;
+         }
+
+         public void close() throws IOException {
+            stream.flush();
+         }
+      };
+   }
+}
@@ -0,0 +1,100 @@
+// Eli Murray
+// 1626960
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Where the blocks of an uploaded file come from.
+ * Blocks are read by their position in the file, a block may be read again
+ * if it has to be resent.
+ *
+ * @author Eli Murray
+ * @version 1.0
+ * @see TftpClient
+ * @see TftpUploader
+ */
+public interface TransferSource {
+
+   /**
+    * Returns the size of the file, sent to the server as tsize
+    *
+    * @return the size of the file in bytes
+    * @throws IOException if the size can not be read
+    */
+   long size() throws IOException;
+
+   /**
+    * Reads the bytes at a position into a buffer until it is full or the end
+    * of the file is reached
+    *
+    * @param position where to read from in the file
+    * @param buffer   the buffer to read into
+    * @throws IOException if the bytes can not be read
+    */
+   void read(long position, ByteBuffer buffer) throws IOException;
+
+   /**
+    * Called once the transfer has ended, whether it worked or not
+    *
+    * @throws IOException if the source can not be closed
+    */
+   default void close() throws IOException {
+   }
+
+   /**
+    * Returns a source that reads from a file
+    *
+    * @param path the file to read
+    * @return the source
+    * @throws IOException if the file can not be opened
+    */
+   static TransferSource file(Path path) throws IOException {
+      FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+      return new TransferSource() {
+         public long size() throws IOException {
+            return channel.size();
+         }
+
+         public void read(long position, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+               if (channel.read(buffer, position + buffer.position()) < 0) {
+                  break;
+               }
+            }
+         }
+
+         public void close() throws IOException {
+            channel.close();
+         }
+      };
+   }
+
+   /**
+    * Returns a source that reads a buffer from its start to its limit. The
+    * buffer position is not moved.
+    *
+    * @param buffer the buffer to read
+    * @return the source
+    */
+   static TransferSource buffer(ByteBuffer buffer) {
+      return new TransferSource() {
+         public long size() {
+            return buffer.limit();
+         }
+
+         public void read(long position, ByteBuffer target) {
+            // duplicate so the buffer position is not moved
+            ByteBuffer source = buffer.duplicate();
+            source.position((int) Math.min(position, buffer.limit()));
+            if (source.remaining() > target.remaining()) {
+               source.limit(source.position() + target.remaining());
+            }
+            target.put(source);
+         }
+      };
+   }
+}